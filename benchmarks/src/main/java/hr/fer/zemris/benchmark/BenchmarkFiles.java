@@ -0,0 +1,71 @@
+package hr.fer.zemris.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Creates and deletes files used by the benchmarks.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public final class BenchmarkFiles {
+
+    /**
+     * Generated files are made of this block repeated over and over.
+     */
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    private BenchmarkFiles() {
+    }
+
+    /**
+     * Creates a temporary file of given size filled with pseudo-random bytes.
+     * 
+     * @param size size of the file in bytes
+     * @return path to the file
+     * @throws IOException if the file can't be written
+     */
+    public static Path generate(long size) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        new Random(size).nextBytes(block);
+
+        Path file = Files.createTempFile("myshell-bench", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size;) {
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(BLOCK_SIZE, size - written));
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @return path to a new empty temporary file
+     * @throws IOException if the file can't be created
+     */
+    public static Path empty() throws IOException {
+        return Files.createTempFile("myshell-bench", ".out");
+    }
+
+    /**
+     * Deletes the files, ignoring the ones that don't exist.
+     * 
+     * @param files files to delete
+     * @throws IOException if a file can't be deleted
+     */
+    public static void delete(Path... files) throws IOException {
+        for (Path file : files) {
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package hr.fer.zemris.benchmark;
+
+import hr.fer.zemris.shell.ShellOutput;
+import hr.fer.zemris.shell.ShellStatus;
+import hr.fer.zemris.shell.command.CatShellCommand;
+import hr.fer.zemris.shell.command.CopyShellCommand;
+import hr.fer.zemris.shell.command.HexdumpShellCommand;
+import hr.fer.zemris.shell.command.ShellCommand;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs shell commands that go through whole files over files of different sizes. Output of the commands is
+ * discarded.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class FileCommandBenchmark {
+
+    @Param({ "4096", "1048576", "67108864", "4294967296" })
+    public long size;
+
+    private final ShellCommand hexdump = new HexdumpShellCommand();
+    private final ShellCommand copy = new CopyShellCommand();
+    private final ShellCommand cat = new CatShellCommand();
+
+    private final BufferedReader in = new BufferedReader(Reader.nullReader());
+    private final BufferedWriter out = new BufferedWriter(Writer.nullWriter());
+
+    private Path src;
+    private Path dest;
+    /**
+     * Shell output that discards bytes, so cat can transfer the file to it.
+     */
+    private BufferedWriter nullOutput;
+
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+        src = BenchmarkFiles.generate(size);
+        dest = BenchmarkFiles.empty();
+        String nullDevice = File.separatorChar == '/' ? "/dev/null" : "NUL";
+        nullOutput = new ShellOutput(new FileOutputStream(nullDevice), StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        nullOutput.close();
+        BenchmarkFiles.delete(src, dest);
+    }
+
+    @Benchmark
+    public ShellStatus hexdump(Megabytes megabytes) {
+        megabytes.add(size);
+        return hexdump.executeCommand(in, out, new String[] { src.toString() });
+    }
+
+    @Benchmark
+    public ShellStatus hexdumpParallel(Megabytes megabytes) {
+        megabytes.add(size);
+        String threads = Integer.toString(Runtime.getRuntime().availableProcessors());
+        return hexdump.executeCommand(in, out, new String[] { "--threads", threads, src.toString() });
+    }
+
+    @Benchmark
+    public ShellStatus catDecode(Megabytes megabytes) {
+        megabytes.add(size);
+        return cat.executeCommand(in, out, new String[] { src.toString(), "UTF-8" });
+    }
+
+    @Benchmark
+    public ShellStatus catTransfer(Megabytes megabytes) {
+        megabytes.add(size);
+        return cat.executeCommand(in, nullOutput, new String[] { src.toString(), "UTF-8" });
+    }
+
+    @Benchmark
+    public ShellStatus copy(Megabytes megabytes) {
+        megabytes.add(size);
+        return copy.executeCommand(in, out, new String[] { src.toString(), dest.toString() });
+    }
+}
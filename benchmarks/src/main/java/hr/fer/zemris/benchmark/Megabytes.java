@@ -0,0 +1,32 @@
+package hr.fer.zemris.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts megabytes processed by a benchmark, JMH reports the counter as MB/s next to ops/s.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Megabytes {
+
+    public double megabytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        megabytes = 0;
+    }
+
+    /**
+     * @param bytes number of bytes processed
+     */
+    public void add(long bytes) {
+        megabytes += bytes / 1e6;
+    }
+}
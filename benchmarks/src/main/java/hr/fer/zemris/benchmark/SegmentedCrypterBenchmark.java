@@ -0,0 +1,79 @@
+package hr.fer.zemris.benchmark;
+
+import hr.fer.zemris.crypto.CryptMode;
+import hr.fer.zemris.crypto.FileCrypter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encrypts and decrypts files of different sizes in segmented format with different numbers of workers.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class SegmentedCrypterBenchmark {
+
+    private static final String KEY = "000102030405060708090a0b0c0d0e0f";
+    private static final String IV = "0f0e0d0c0b0a09080706050403020100";
+
+    @Param({ "4096", "1048576", "67108864", "4294967296" })
+    public long size;
+
+    /**
+     * Number of workers used for segmented format.
+     */
+    @Param({ "1", "4", "16" })
+    public int threads;
+
+    private Path src;
+    private Path encrypted;
+    private Path dest;
+
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+        src = BenchmarkFiles.generate(size);
+        encrypted = BenchmarkFiles.empty();
+        dest = BenchmarkFiles.empty();
+        new FileCrypter(src.toString(), encrypted.toString(), KEY, IV, CryptMode.ENCRYPT).cryptSegmented(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        BenchmarkFiles.delete(src, encrypted, dest);
+    }
+
+    @Benchmark
+    public void segmentedEncrypt(Megabytes megabytes) throws IOException {
+        megabytes.add(size);
+        new FileCrypter(src.toString(), dest.toString(), KEY, IV, CryptMode.ENCRYPT).cryptSegmented(threads);
+    }
+
+    @Benchmark
+    public void segmentedDecrypt(Megabytes megabytes) throws IOException {
+        megabytes.add(size);
+        new FileCrypter(encrypted.toString(), dest.toString(), KEY, IV, CryptMode.DECRYPT)
+                .cryptSegmented(threads);
+    }
+}
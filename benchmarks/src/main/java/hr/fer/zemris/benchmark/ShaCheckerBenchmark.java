@@ -0,0 +1,75 @@
+package hr.fer.zemris.benchmark;
+
+import hr.fer.zemris.crypto.ShaChecker;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Calculates digests of files of different sizes with {@link ShaChecker}.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class ShaCheckerBenchmark {
+
+    @Param({ "4096", "1048576", "67108864", "4294967296" })
+    public long size;
+
+    private Path src;
+
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+        src = BenchmarkFiles.generate(size);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        BenchmarkFiles.delete(src);
+    }
+
+    @Benchmark
+    public String calculateDigest(Megabytes megabytes) {
+        megabytes.add(size);
+        ShaChecker checker = new ShaChecker(src.toString());
+        checker.calculateDigest();
+        return checker.getDigest();
+    }
+
+    @Benchmark
+    public Object calculateThreeDigests(Megabytes megabytes) {
+        megabytes.add(size);
+        ShaChecker checker = new ShaChecker(src.toString(), "SHA-1", "SHA-256", "CRC32C");
+        checker.calculateDigest(false);
+        return checker.getDigests();
+    }
+
+    @Benchmark
+    public Object calculateThreeDigestsFanOut(Megabytes megabytes) {
+        megabytes.add(size);
+        ShaChecker checker = new ShaChecker(src.toString(), "SHA-1", "SHA-256", "CRC32C");
+        checker.calculateDigest(true);
+        return checker.getDigests();
+    }
+}
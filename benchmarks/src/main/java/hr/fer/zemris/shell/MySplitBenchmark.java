@@ -0,0 +1,52 @@
+package hr.fer.zemris.shell;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splits command lines of different lengths with {@link MyShell#mySplit(String)}.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class MySplitBenchmark {
+
+    /**
+     * Number of arguments in the command line.
+     */
+    @Param({ "2", "16", "256" })
+    public int arguments;
+
+    private String line;
+
+    @Setup
+    public void createLine() {
+        StringBuilder sb = new StringBuilder("copy");
+        for (int i = 0; i < arguments; i++) {
+            sb.append(i % 2 == 0 ? "   \"some dir/file " + i + ".txt\"" : " plain" + i);
+        }
+        line = sb.toString();
+    }
+
+    @Benchmark
+    public String[] mySplit() {
+        return MyShell.mySplit(line);
+    }
+}
@@ -0,0 +1,60 @@
+package hr.fer.zemris.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.zip.Checksum;
+
+/**
+ * {@link MessageDigest} backed by a 32-bit {@link Checksum} (i.e. CRC32C), so checksums can be calculated together
+ * with digests. Digest of a checksum is its value as 4 big-endian bytes.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class ChecksumDigest extends MessageDigest {
+
+    private static final int LENGTH = 4;
+
+    private final Checksum checksum;
+
+    /**
+     * @param algorithm name of the checksum
+     * @param checksum checksum used
+     */
+    ChecksumDigest(String algorithm, Checksum checksum) {
+        super(algorithm);
+        this.checksum = checksum;
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return LENGTH;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        checksum.update(input);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        checksum.update(input, offset, len);
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        checksum.update(input);
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long value = checksum.getValue();
+        checksum.reset();
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+
+    @Override
+    protected void engineReset() {
+        checksum.reset();
+    }
+}
@@ -0,0 +1,239 @@
+package hr.fer.zemris.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Pool of ciphers that lives as long as the program does. Ciphers are pooled by algorithm and key fingerprint, so a
+ * cipher taken from the pool already has the key set up and only needs to be initialized with a new initialization
+ * vector. Pool holds ciphers for a limited number of keys, least recently used keys are evicted first.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public final class CipherPool {
+
+    /**
+     * Maximum number of keys whose ciphers are kept.
+     */
+    private static final int MAX_KEYS = 16;
+    /**
+     * Maximum number of idle ciphers kept for one key.
+     */
+    private static final int MAX_IDLE_PER_KEY = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Pool used by every {@link FileCrypter}.
+     */
+    private static final CipherPool SESSION = new CipherPool(MAX_KEYS);
+
+    /**
+     * Pooled ciphers mapped by algorithm and key fingerprint, in access order.
+     */
+    private final Map<String, KeyCiphers> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxKeys maximum number of keys whose ciphers are kept
+     */
+    public CipherPool(int maxKeys) {
+        entries = new LinkedHashMap<String, KeyCiphers>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, KeyCiphers> eldest) {
+                if (size() > maxKeys) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return pool shared by the whole session
+     */
+    public static CipherPool session() {
+        return SESSION;
+    }
+
+    /**
+     * Takes a cipher for the given algorithm and key from the pool, or creates a new one if there is no idle cipher.
+     * Cipher must be initialized through {@link Lease#init(int, AlgorithmParameterSpec)} before use, and returned by
+     * closing the lease.
+     *
+     * @param transformation name of the transformation, i.e. <code>AES/CBC/PKCS5Padding</code>
+     * @param key key bytes
+     * @return lease of the cipher
+     * @throws NoSuchAlgorithmException if transformation isn't supported
+     * @throws NoSuchPaddingException if padding isn't supported
+     */
+    public Lease acquire(String transformation, byte[] key) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        String id = transformation + '/' + fingerprint(key);
+
+        KeyCiphers entry;
+        Cipher cipher;
+        synchronized (this) {
+            entry = entries.get(id);
+            if (entry == null) {
+                entry = new KeyCiphers(new SecretKeySpec(key, transformation.split("/")[0]));
+                entries.put(id, entry);
+            }
+            cipher = entry.idle.pollFirst();
+            if (cipher != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+        }
+        return new Lease(id, entry, cipher);
+    }
+
+    /**
+     * Returns the cipher to the pool if its key is still pooled and there aren't too many idle ciphers.
+     *
+     * @param id algorithm and key fingerprint
+     * @param entry entry the cipher was taken from
+     * @param cipher cipher to return
+     */
+    private synchronized void release(String id, KeyCiphers entry, Cipher cipher) {
+        if (entries.get(id) == entry && entry.idle.size() < MAX_IDLE_PER_KEY) {
+            entry.idle.offerFirst(cipher);
+        }
+    }
+
+    /**
+     * @return number of times an idle cipher was reused
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of times a new cipher had to be created
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of keys evicted from the pool
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return number of keys currently in the pool
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Calculates the fingerprint of the key, so keys themselves aren't used as map keys.
+     *
+     * @param key key bytes
+     * @return fingerprint of the key
+     */
+    private static String fingerprint(byte[] key) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update("MyShell cipher pool".getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(sha.digest(key));
+        } catch (NoSuchAlgorithmException nsae) {
+            // every Java platform has a SHA-256 algorithm
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /**
+     * Key and idle ciphers of one algorithm and key.
+     */
+    private static class KeyCiphers {
+
+        /**
+         * Key shared by all ciphers of the entry.
+         */
+        private final SecretKeySpec key;
+        /**
+         * Idle ciphers, most recently used first.
+         */
+        private final Deque<Cipher> idle = new ArrayDeque<>();
+
+        public KeyCiphers(SecretKeySpec key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Cipher taken from the pool. Closing the lease returns the cipher to the pool.
+     *
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    public final class Lease implements AutoCloseable {
+
+        private final String id;
+        private final KeyCiphers entry;
+        private final Cipher cipher;
+
+        private Lease(String id, KeyCiphers entry, Cipher cipher) {
+            this.id = id;
+            this.entry = entry;
+            this.cipher = cipher;
+        }
+
+        /**
+         * Initializes the cipher with the pooled key and given parameters. Cipher that encrypts with AES/GCM must get a
+         * nonce it hasn't encrypted with yet, otherwise it refuses to be initialized.
+         *
+         * @param opmode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+         * @param params initialization vector or other parameters of the algorithm
+         * @return initialized cipher
+         * @throws InvalidKeyException if the key is invalid
+         * @throws InvalidAlgorithmParameterException if parameters are invalid
+         */
+        public Cipher init(int opmode, AlgorithmParameterSpec params) throws InvalidKeyException,
+                InvalidAlgorithmParameterException {
+            cipher.init(opmode, entry.key, params);
+            return cipher;
+        }
+
+        /**
+         * @return leased cipher
+         */
+        public Cipher getCipher() {
+            return cipher;
+        }
+
+        /**
+         * Returns the cipher to the pool.
+         */
+        @Override
+        public void close() {
+            release(id, entry, cipher);
+        }
+    }
+}
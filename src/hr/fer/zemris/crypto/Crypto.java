@@ -1,7 +1,10 @@
 package hr.fer.zemris.crypto;
 
+import hr.fer.zemris.util.Arguments;
 import hr.fer.zemris.util.Utility;
 
+import java.io.IOException;
+
 /**
  * This class allows user to encrypt/decrypt given file using AES crypto-algorithm and 128-bit encryption key or
  * calculate and check SHA-1 file digest
@@ -19,6 +22,8 @@ public class Crypto {
      * <li>decrypt - decrypts the document given through arguments</li>
      * <li>checksha - checks SHA-1 file digest</li>
      * </ul>
+     * Encryption uses segmented format if <code>--segmented</code> or <code>--threads N</code> option is provided.
+     * Files in legacy format are crypted through memory-mapped channels if <code>--nio</code> option is provided.
      * 
      * @param args arguments given through command line
      */
@@ -28,10 +33,18 @@ public class Crypto {
         }
 
         if (args[0].equalsIgnoreCase("encrypt") || args[0].equalsIgnoreCase("decrypt")) {
-            if (args.length != 3) {
+            Arguments arguments = new Arguments(args, "threads");
+            String[] files = arguments.getPositional();
+            if (files.length != 3) {
                 throw new IllegalArgumentException("Must provide 2 additional arguments in " + args[0] + " mode.");
             }
-            crypt(args[1], args[2], (args[0].equalsIgnoreCase("encrypt") ? CryptMode.ENCRYPT : CryptMode.DECRYPT));
+            int threads = arguments.getInt("threads", Runtime.getRuntime().availableProcessors());
+            if (threads < 1) {
+                throw new IllegalArgumentException("Number of threads must be positive.");
+            }
+            boolean segmented = arguments.hasOption("segmented") || arguments.hasOption("threads");
+            crypt(files[1], files[2], (args[0].equalsIgnoreCase("encrypt") ? CryptMode.ENCRYPT : CryptMode.DECRYPT),
+                    segmented, threads, arguments.hasOption("nio"));
 
         } else if (args[0].equalsIgnoreCase("checksha")) {
             if (args.length != 2) {
@@ -69,8 +82,12 @@ public class Crypto {
      * @param inputFile
      * @param outputFile
      * @param mode encrypt/decrypt
+     * @param segmented whether to encrypt in segmented format, files in segmented format are always decrypted as such
+     * @param threads number of workers used for segmented format
+     * @param nio whether to crypt legacy format through channels instead of streams
      */
-    private static void crypt(String inputFile, String outputFile, CryptMode mode) {
+    private static void crypt(String inputFile, String outputFile, CryptMode mode, boolean segmented, int threads,
+            boolean nio) {
 
         String encryptionKey;
         String initializationVector;
@@ -80,13 +97,26 @@ public class Crypto {
         System.out.print("Please provide initialization vector as hex-encoded text (32 hex-digits):\n> ");
         initializationVector = Utility.readLine();
 
+        if (mode == CryptMode.DECRYPT) {
+            segmented = FileCrypter.isSegmented(inputFile);
+        }
+
         FileCrypter fileCrypter = new FileCrypter(inputFile, outputFile, encryptionKey, initializationVector, mode);
 
-        if (fileCrypter.cryptIt()) {
-            System.out.println((mode == CryptMode.ENCRYPT ? "En" : "De") + "cryption completed. Generated file "
-                    + outputFile + " based on file " + inputFile);
-        } else {
-            System.out.println((mode == CryptMode.ENCRYPT ? "En" : "De") + "cryption failed.");
+        try {
+            if (segmented) {
+                fileCrypter.cryptSegmented(threads);
+            } else if (nio) {
+                fileCrypter.cryptNio();
+            } else {
+                fileCrypter.cryptIt();
+            }
+        } catch (IOException ioe) {
+            System.out.println((mode == CryptMode.ENCRYPT ? "En" : "De") + "cryption failed: " + ioe.getMessage());
+            return;
         }
+
+        System.out.println((mode == CryptMode.ENCRYPT ? "En" : "De") + "cryption completed. Generated file "
+                + outputFile + " based on file " + inputFile);
     }
 }
@@ -0,0 +1,302 @@
+package hr.fer.zemris.crypto;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent cache of file digests. Digest is mapped by algorithm and absolute path of the file, and is stored together
+ * with the size, modification time and file key (i.e. inode) the file had when it was digested. Cached digest is used
+ * only if the file still has the same attributes, otherwise the entry is dropped, so a cached digest is returned
+ * without reading the file. Cache holds a limited number of entries, least recently used entries are evicted first.
+ * <p>
+ * Cache is kept in a binary file and loaded the first time it's needed. File starts with magic <code>MYSHDGC</code>,
+ * format version and number of entries, followed by the entries. Every entry is written as path, algorithm (both as
+ * modified UTF-8), size, modification time in nanoseconds, file key (empty if the file system doesn't have one),
+ * digest length and digest bytes.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public final class DigestCache {
+
+    /**
+     * Magic bytes at the start of the cache file.
+     */
+    private static final byte[] MAGIC = { 'M', 'Y', 'S', 'H', 'D', 'G', 'C' };
+    /**
+     * Version of the cache file format.
+     */
+    private static final byte VERSION = 1;
+    /**
+     * Maximum number of cached digests.
+     */
+    private static final int MAX_ENTRIES = 100_000;
+    /**
+     * Files modified less than this many nanoseconds before they were digested aren't cached, because they could be
+     * modified again without changing their modification time.
+     */
+    private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * Cache used by the shell, kept in the <code>.myshell</code> directory of the user's home.
+     */
+    private static final DigestCache SESSION = new DigestCache(Paths.get(System.getProperty("user.home"), ".myshell",
+            "digests.bin"), MAX_ENTRIES);
+
+    private final Path file;
+    private final int maxEntries;
+    /**
+     * Cached entries mapped by algorithm and path, in access order, or <code>null</code> if not loaded yet.
+     */
+    private Map<String, CachedDigest> entries;
+    /**
+     * Whether there are changes that weren't saved yet.
+     */
+    private boolean dirty;
+
+    private long hits;
+    private long misses;
+    private long invalidations;
+    private long evictions;
+
+    /**
+     * @param file file the cache is kept in
+     * @param maxEntries maximum number of cached digests
+     */
+    public DigestCache(Path file, int maxEntries) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return cache shared by the whole session
+     */
+    public static DigestCache session() {
+        return SESSION;
+    }
+
+    /**
+     * Returns the cached digest of the file if the file hasn't changed since it was digested.
+     *
+     * @param path path to the file
+     * @param algorithm digest algorithm
+     * @param attrs current attributes of the file
+     * @return cached digest, or <code>null</code> if there isn't one
+     */
+    public synchronized byte[] lookup(Path path, String algorithm, BasicFileAttributes attrs) {
+        String id = idOf(path, algorithm);
+        CachedDigest entry = entries().get(id);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (!entry.matches(attrs)) {
+            entries.remove(id);
+            dirty = true;
+            invalidations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.digest.clone();
+    }
+
+    /**
+     * Caches the digest of the file. Attributes must be read before the file was digested, so a file modified while
+     * being digested isn't found in the cache later.
+     *
+     * @param path path to the file
+     * @param algorithm digest algorithm
+     * @param attrs attributes of the file read before digesting it
+     * @param digest digest of the file
+     */
+    public synchronized void store(Path path, String algorithm, BasicFileAttributes attrs, byte[] digest) {
+        long modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        if (now - modified < RACY_NANOS) {
+            return;
+        }
+        entries().put(idOf(path, algorithm), new CachedDigest(attrs.size(), modified, fileKeyOf(attrs),
+                digest.clone()));
+        dirty = true;
+    }
+
+    /**
+     * Saves the cache to its file if anything changed. Cache is written to a temporary file first, so a failed save
+     * doesn't destroy the previous one.
+     *
+     * @throws IOException if writing fails
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, CachedDigest> mapped : entries.entrySet()) {
+                int split = mapped.getKey().indexOf('\0');
+                CachedDigest entry = mapped.getValue();
+                out.writeUTF(mapped.getKey().substring(split + 1));
+                out.writeUTF(mapped.getKey().substring(0, split));
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeUTF(entry.fileKey);
+                out.writeByte(entry.digest.length);
+                out.write(entry.digest);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    /**
+     * Returns the cached entries, loading them from the file the first time. Cache file that can't be read is ignored
+     * and will be overwritten on the next save.
+     *
+     * @return cached entries
+     */
+    private Map<String, CachedDigest> entries() {
+        if (entries != null) {
+            return entries;
+        }
+        entries = new LinkedHashMap<String, CachedDigest>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedDigest> eldest) {
+                if (size() > maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        if (!Files.isRegularFile(file)) {
+            return entries;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readByte() != VERSION) {
+                throw new IOException("Not a digest cache.");
+            }
+            for (int count = in.readInt(); count > 0; count--) {
+                String path = in.readUTF();
+                String algorithm = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                String fileKey = in.readUTF();
+                byte[] digest = new byte[in.readUnsignedByte()];
+                in.readFully(digest);
+                entries.put(algorithm + '\0' + path, new CachedDigest(size, modified, fileKey, digest));
+            }
+        } catch (EOFException eofe) {
+            // truncated cache, keeping the entries read so far
+            dirty = true;
+        } catch (IOException ioe) {
+            System.err.println("Digest cache " + file + " can't be read, starting with an empty one.");
+            entries.clear();
+            dirty = true;
+        }
+        return entries;
+    }
+
+    /**
+     * @param path path to the file
+     * @param algorithm digest algorithm
+     * @return key of the entry
+     */
+    private static String idOf(Path path, String algorithm) {
+        return algorithm.toUpperCase() + '\0' + path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * @param attrs attributes of the file
+     * @return file key as a string, or empty string if the file system doesn't have file keys
+     */
+    private static String fileKeyOf(BasicFileAttributes attrs) {
+        Object fileKey = attrs.fileKey();
+        return fileKey == null ? "" : fileKey.toString();
+    }
+
+    /**
+     * @return number of digests returned from the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of digests that weren't in the cache or were outdated
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of entries dropped because the file changed
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return number of entries evicted because the cache was full
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return number of cached digests, or -1 if the cache wasn't loaded yet
+     */
+    public synchronized int size() {
+        return entries == null ? -1 : entries.size();
+    }
+
+    /**
+     * Cached digest with the attributes the file had when it was digested.
+     */
+    private static class CachedDigest {
+
+        private final long size;
+        private final long modified;
+        private final String fileKey;
+        private final byte[] digest;
+
+        public CachedDigest(long size, long modified, String fileKey, byte[] digest) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.digest = digest;
+        }
+
+        /**
+         * @param attrs current attributes of the file
+         * @return <code>true</code> if the file still has the same attributes, <code>false</code> otherwise
+         */
+        public boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size() && modified == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                    && fileKey.equals(fileKeyOf(attrs));
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package hr.fer.zemris.crypto;
 
+import hr.fer.zemris.util.RateLimiter;
 import hr.fer.zemris.util.Utility;
 
 import java.io.BufferedInputStream;
@@ -9,24 +10,43 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
- * This class is used to encrypt/decrypt files in {@link Crypto} class.
+ * This class is used to encrypt/decrypt files in {@link Crypto} class. Files can be encrypted in two formats:
+ * <ul>
+ * <li>legacy format - whole file encrypted with AES/CBC/PKCS5Padding, see {@link #cryptIt()} and
+ * {@link #cryptNio()}</li>
+ * <li>segmented format - file split into chunks that are encrypted on a pool of workers and can be decrypted
+ * separately, see {@link #cryptSegmented(int)} and {@link #decryptRange(long, long, int)}</li>
+ * </ul>
  * 
  * @author Filip Hrenić
  * @version 1.0
@@ -34,11 +54,40 @@ import javax.crypto.spec.SecretKeySpec;
 public class FileCrypter {
 
     private static final int BUFFER_CAPACITY = 4096;
+    /**
+     * Size of the slices passed to the cipher in {@link #cryptNio()}.
+     */
+    private static final int DIRECT_BUFFER_CAPACITY = 1 << 20;
+    /**
+     * Size of the source file windows mapped into memory in {@link #cryptNio()}.
+     */
+    private static final long MAPPED_WINDOW = 64L << 20;
+    /**
+     * Input for the last call to the cipher.
+     */
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    /**
+     * Transformation used for the legacy format.
+     */
+    private static final String LEGACY_TRANSFORMATION = "AES/CBC/PKCS5Padding";
 
     /**
-     * Cipher being used.
+     * Key used for encryption/decryption.
      */
-    private Cipher cipher;
+    private final byte[] key;
+    /**
+     * Initialization vector.
+     */
+    private final byte[] iv;
+    /**
+     * Encrypting or decrypting.
+     */
+    private final CryptMode mode;
+    /**
+     * {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+     */
+    private final int opmode;
     /**
      * Path to the input file.
      */
@@ -47,6 +96,10 @@ public class FileCrypter {
      * Path to the output file.
      */
     private final String destFile;
+    /**
+     * Limiter of the rate the source is read at.
+     */
+    private RateLimiter limiter = RateLimiter.session();
 
     /**
      * @param inputFile
@@ -58,18 +111,10 @@ public class FileCrypter {
     public FileCrypter(String inputFile, String outputFile, String encryptionKey, String initializationVector,
             CryptMode mode) {
 
-        int opmode = (mode == CryptMode.ENCRYPT ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE);
-
-        SecretKeySpec keySpec = new SecretKeySpec(Utility.hexToByte(encryptionKey), "AES");
-        AlgorithmParameterSpec paramSpec = new IvParameterSpec(Utility.hexToByte(initializationVector));
-
-        try {
-            cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(opmode, keySpec, paramSpec);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
-                | InvalidAlgorithmParameterException e) {
-            System.err.println("Error while creating cipher.");
-        }
+        key = Utility.hexToByte(encryptionKey);
+        iv = Utility.hexToByte(initializationVector);
+        this.mode = mode;
+        opmode = (mode == CryptMode.ENCRYPT ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE);
 
         srcFile = inputFile;
         destFile = outputFile;
@@ -86,38 +131,380 @@ public class FileCrypter {
     }
 
     /**
-     * Encrypts/Decrypts the source file to destination file.
+     * Sets the limiter the source is read through, default is the limiter of the session.
      * 
-     * @return <code>true</code> if crypting succeded, <code>false</code> otherwise
+     * @param limiter limiter of the rate
      */
-    public boolean cryptIt() {
+    public void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
 
-        try {
-            InputStream is = new BufferedInputStream(new FileInputStream(srcFile));
-            OutputStream os = new BufferedOutputStream(new FileOutputStream(destFile));
+    /**
+     * Encrypts/Decrypts the source file to destination file. Destination is deleted if crypting fails.
+     * 
+     * @throws IOException if crypting fails, with the cause of the failure
+     */
+    public void cryptIt() throws IOException {
+
+        CipherPool.Lease lease = legacyCipher();
+
+        try (lease;
+                InputStream is = new BufferedInputStream(new FileInputStream(srcFile));
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(destFile))) {
+            Cipher cipher = lease.getCipher();
 
             byte[] bufferIn = new byte[BUFFER_CAPACITY]; // 4kB buffer
+            byte[] bufferOut = new byte[cipher.getOutputSize(BUFFER_CAPACITY + cipher.getBlockSize())];
             while (true) {
                 int numOfBytes = is.read(bufferIn);
                 if (numOfBytes < 1) {
                     break;
                 }
+                limiter.acquire(numOfBytes);
 
-                byte[] bufferOut = new byte[BUFFER_CAPACITY]; // 4kB buffer
                 int numOfBytesOut = cipher.update(bufferIn, 0, numOfBytes, bufferOut);
                 os.write(bufferOut, 0, numOfBytesOut);
             }
 
-            cipher.doFinal();
-            is.close();
-            os.close();
+            int numOfBytesOut = cipher.doFinal(bufferOut, 0); // last (padded) block
+            os.write(bufferOut, 0, numOfBytesOut);
+
+        } catch (IOException | ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+            throw failed(e);
+        }
+    }
+
+    /**
+     * Encrypts/Decrypts the source file to destination file in the same format as {@link #cryptIt()}, but without
+     * streams. Source file is mapped into memory window by window, every window is passed to the cipher in slices
+     * that are written through a reused direct buffer to the destination channel. Destination is deleted if crypting
+     * fails.
+     * 
+     * @throws IOException if crypting fails, with the cause of the failure
+     */
+    public void cryptNio() throws IOException {
+
+        CipherPool.Lease lease = legacyCipher();
+
+        try (lease;
+                FileChannel src = FileChannel.open(Paths.get(srcFile), StandardOpenOption.READ);
+                FileChannel dest = FileChannel.open(Paths.get(destFile), StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            // cipher can hold back one block between the slices
+            Cipher cipher = lease.getCipher();
+            ByteBuffer bufferOut = ByteBuffer.allocateDirect(cipher.getOutputSize(DIRECT_BUFFER_CAPACITY
+                    + cipher.getBlockSize()));
+            long size = src.size();
+
+            for (long position = 0; position < size; position += MAPPED_WINDOW) {
+                ByteBuffer window = src.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAPPED_WINDOW, size - position));
+
+                while (window.hasRemaining()) {
+                    window.limit(Math.min(window.capacity(), window.position() + DIRECT_BUFFER_CAPACITY));
+                    limiter.acquire(window.remaining());
+                    bufferOut.clear();
+                    cipher.update(window, bufferOut);
+                    writeFully(dest, bufferOut);
+                    window.limit(window.capacity());
+                }
+            }
+
+            bufferOut.clear();
+            cipher.doFinal(EMPTY_BUFFER.duplicate(), bufferOut); // last (padded) block
+            writeFully(dest, bufferOut);
 
         } catch (IOException | ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
-            return false;
+            throw failed(e);
+        }
+    }
+
+    /**
+     * Takes a cipher for the legacy format from the session pool and initializes it.
+     * 
+     * @return lease of the cipher
+     * @throws IOException if the cipher couldn't be created, destination is deleted then
+     */
+    private CipherPool.Lease legacyCipher() throws IOException {
+        try {
+            CipherPool.Lease lease = CipherPool.session().acquire(LEGACY_TRANSFORMATION, key);
+            lease.init(opmode, new IvParameterSpec(iv));
+            return lease;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
+                | InvalidAlgorithmParameterException e) {
+            throw failed(e);
+        }
+    }
+
+    /**
+     * Deletes the destination, which holds only a part of the output if anything, and describes the failure.
+     * 
+     * @param cause cause of the failure
+     * @return exception to throw
+     */
+    private IOException failed(Exception cause) {
+        try {
+            Files.deleteIfExists(Paths.get(destFile));
+        } catch (IOException ioe) {
+            cause.addSuppressed(ioe);
+        }
+
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        } else if (cause instanceof BadPaddingException || cause instanceof IllegalBlockSizeException) {
+            return new IOException("Wrong key or initialization vector, or " + srcFile + " isn't encrypted.", cause);
+        } else if (cause instanceof GeneralSecurityException) {
+            return new IOException("Error while creating cipher: " + cause.getMessage(), cause);
         }
+        return new IOException(cause);
+    }
 
-        return true;
+    /**
+     * Writes everything that was put into the buffer to the channel.
+     * 
+     * @param channel channel to write to
+     * @param buffer buffer in write mode
+     * @throws IOException if writing fails
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
 
+    /**
+     * Encrypts the source file to destination file in segmented format, or decrypts the source file that is in
+     * segmented format. Chunks of the file are processed by given number of workers, each worker reads and writes its
+     * chunks at their positions in the files. Destination is deleted if crypting fails.
+     * 
+     * @param threads number of workers
+     * @throws IOException if crypting fails, with the cause of the failure
+     */
+    public void cryptSegmented(int threads) throws IOException {
+
+        try (FileChannel src = FileChannel.open(Paths.get(srcFile), StandardOpenOption.READ);
+                FileChannel dest = FileChannel.open(Paths.get(destFile), StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            SegmentedFormat format;
+            if (mode == CryptMode.ENCRYPT) {
+                format = SegmentedFormat.create(SegmentedFormat.DEFAULT_CHUNK_SIZE, src.size());
+                format.write(dest);
+            } else {
+                format = readFormat(src);
+            }
+
+            cryptChunks(src, dest, format, 0, format.plainLength, threads);
+
+        } catch (IOException ioe) {
+            throw failed(ioe);
+        }
+    }
+
+    /**
+     * Decrypts only the given byte range of the original file from the source file that is in segmented format. Only
+     * the chunks covering the range are read, so time needed depends on the length of the range and not on the size of
+     * the file. Destination file will contain only the decrypted range, it's deleted if decrypting fails.
+     * 
+     * @param offset position of the first byte of the range in the original file
+     * @param length length of the range, range is shortened if it ends after the end of the original file
+     * @param threads number of workers
+     * @throws IOException if decrypting fails, with the cause of the failure
+     */
+    public void decryptRange(long offset, long length, int threads) throws IOException {
+        if (mode != CryptMode.DECRYPT) {
+            throw new IllegalStateException("Range can only be decrypted in decrypt mode.");
+        }
+
+        try (FileChannel src = FileChannel.open(Paths.get(srcFile), StandardOpenOption.READ);
+                FileChannel dest = FileChannel.open(Paths.get(destFile), StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            SegmentedFormat format = readFormat(src);
+            if (offset < 0 || length < 0 || offset > format.plainLength) {
+                throw new IOException("Range is outside of the file " + srcFile + ".");
+            }
+
+            long end = (length > format.plainLength - offset ? format.plainLength : offset + length);
+            cryptChunks(src, dest, format, offset, end, threads);
+
+        } catch (IOException ioe) {
+            throw failed(ioe);
+        }
+    }
+
+    /**
+     * Reads and checks the header of the source file.
+     * 
+     * @param src source channel
+     * @return header of the file
+     * @throws IOException if reading fails or the file isn't in segmented format
+     */
+    private SegmentedFormat readFormat(FileChannel src) throws IOException {
+        SegmentedFormat format = SegmentedFormat.read(src);
+        if (format == null || src.size() != format.encryptedLength()) {
+            throw new IOException("File " + srcFile + " isn't in segmented format.");
+        }
+        return format;
+    }
+
+    /**
+     * Crypts all of the chunks that cover the given range of the original file on a pool of workers.
+     * 
+     * @param src source channel
+     * @param dest destination channel
+     * @param format header of the segmented file
+     * @param from start of the range in the original file, inclusive
+     * @param to end of the range in the original file, exclusive
+     * @param threads number of workers
+     * @throws IOException if crypting fails, with the cause of the failure of the first worker that failed
+     */
+    private void cryptChunks(FileChannel src, FileChannel dest, SegmentedFormat format, long from, long to,
+            int threads) throws IOException {
+
+        long lastChunk = (from == to ? format.chunkOf(from) : format.chunkOf(to - 1) + 1);
+        AtomicLong nextChunk = new AtomicLong(format.chunkOf(from));
+        AtomicBoolean failed = new AtomicBoolean();
+
+        List<Callable<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(() -> {
+                try {
+                    cryptChunks(src, dest, format, from, to, nextChunk, lastChunk, failed);
+                } catch (IOException | GeneralSecurityException e) {
+                    failed.set(true);
+                    throw e;
+                }
+                return null;
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<Void> worker : pool.invokeAll(workers)) {
+                worker.get();
+            }
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof GeneralSecurityException) {
+                throw new IOException("Error while creating cipher: " + cause.getMessage(), cause);
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while crypting " + srcFile + ".");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Takes chunks one by one and crypts them until there are no more chunks or some other worker fails. When
+     * decrypting, only the part of the chunk that is inside of the range is written.
+     * 
+     * @param src source channel
+     * @param dest destination channel
+     * @param format header of the segmented file
+     * @param from start of the range in the original file, inclusive
+     * @param to end of the range in the original file, exclusive
+     * @param nextChunk index of the next chunk that isn't taken
+     * @param lastChunk index of the first chunk after the range
+     * @param failed set when some worker fails
+     * @throws IOException if reading or writing fails or a chunk fails authentication
+     * @throws GeneralSecurityException if the cipher can't be created
+     */
+    private void cryptChunks(FileChannel src, FileChannel dest, SegmentedFormat format, long from, long to,
+            AtomicLong nextChunk, long lastChunk, AtomicBoolean failed) throws IOException, GeneralSecurityException {
+
+        try (CipherPool.Lease lease = CipherPool.session().acquire(SegmentedFormat.TRANSFORMATION, key)) {
+            cryptChunks(src, dest, format, from, to, nextChunk, lastChunk, failed, lease);
+        }
+    }
+
+    /**
+     * Crypts the chunks with a cipher taken from the session pool.
+     * 
+     * @param src source channel
+     * @param dest destination channel
+     * @param format header of the segmented file
+     * @param from start of the range in the original file, inclusive
+     * @param to end of the range in the original file, exclusive
+     * @param nextChunk index of the next chunk that isn't taken
+     * @param lastChunk index of the first chunk after the range
+     * @param failed set when some worker fails
+     * @param lease cipher used for the chunks
+     * @throws IOException if reading or writing fails or a chunk fails authentication
+     * @throws GeneralSecurityException if the cipher can't be initialized
+     */
+    private void cryptChunks(FileChannel src, FileChannel dest, SegmentedFormat format, long from, long to,
+            AtomicLong nextChunk, long lastChunk, AtomicBoolean failed, CipherPool.Lease lease) throws IOException,
+            GeneralSecurityException {
+
+        byte[] header = format.toBytes();
+        byte[] fileIv = format.salted(iv);
+
+        ByteBuffer bufferIn = ByteBuffer.allocateDirect(format.chunkSize + SegmentedFormat.TAG_LENGTH);
+        ByteBuffer bufferOut = ByteBuffer.allocateDirect(format.chunkSize + SegmentedFormat.TAG_LENGTH);
+
+        while (!failed.get()) {
+            long chunk = nextChunk.getAndIncrement();
+            if (chunk >= lastChunk) {
+                break;
+            }
+
+            long plainPosition = chunk * format.chunkSize;
+            int plainLength = format.plainChunkLength(chunk);
+            long encryptedPosition = format.encryptedPosition(chunk);
+
+            bufferIn.clear().limit(mode == CryptMode.ENCRYPT ? plainLength : plainLength + SegmentedFormat.TAG_LENGTH);
+            long readPosition = (mode == CryptMode.ENCRYPT ? plainPosition : encryptedPosition);
+            while (bufferIn.hasRemaining()) {
+                if (src.read(bufferIn, readPosition + bufferIn.position()) < 0) {
+                    throw new IOException("Unexpected end of file " + srcFile);
+                }
+            }
+            limiter.acquire(bufferIn.position());
+            bufferIn.flip();
+
+            Cipher chunkCipher = lease.init(opmode, format.parametersFor(fileIv, chunk));
+            chunkCipher.updateAAD(header);
+            bufferOut.clear();
+            try {
+                chunkCipher.doFinal(bufferIn, bufferOut);
+            } catch (AEADBadTagException abte) {
+                throw new IOException("Chunk " + chunk + " of " + srcFile + " failed authentication, wrong key or "
+                        + "initialization vector, or the file was modified.", abte);
+            }
+            bufferOut.flip();
+
+            long writePosition;
+            if (mode == CryptMode.ENCRYPT) {
+                writePosition = encryptedPosition;
+            } else {
+                long start = Math.max(from, plainPosition);
+                long end = Math.min(to, plainPosition + plainLength);
+                bufferOut.limit((int) (end - plainPosition)).position((int) (start - plainPosition));
+                writePosition = start - from;
+            }
+
+            while (bufferOut.hasRemaining()) {
+                writePosition += dest.write(bufferOut, writePosition);
+            }
+        }
+    }
+
+    /**
+     * Checks if the file was encrypted in segmented format.
+     * 
+     * @param fileName path to the file
+     * @return <code>true</code> if it was, <code>false</code> otherwise
+     */
+    public static boolean isSegmented(String fileName) {
+        return SegmentedFormat.isSegmented(fileName);
     }
 
 }
@@ -0,0 +1,274 @@
+package hr.fer.zemris.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Header of the segmented encryption format used by {@link FileCrypter}. Segmented file consists of a header followed
+ * by the encrypted chunks of the original file. Every chunk is encrypted on its own and its nonce is derived from the
+ * initialization vector and the chunk index, so chunks can be encrypted and decrypted independently of each other and
+ * any byte range of the original file can be decrypted by reading only the chunks covering it. Chunks are encrypted
+ * with AES/GCM, every encrypted chunk is followed by its 16 byte authentication tag and the header is authenticated as
+ * a part of every chunk.
+ * <p>
+ * Many files are encrypted with the same key and initialization vector (i.e. a whole directory), so every file gets a
+ * random salt which is stored in its header and hashed together with the initialization vector. Otherwise the same
+ * chunk of two files would be encrypted with the same nonce, which gives away the xor of their contents and, for GCM,
+ * the authentication key.
+ * <p>
+ * Header layout is:
+ * <ul>
+ * <li>7 bytes - magic <code>MYSHSEG</code></li>
+ * <li>1 byte - format version</li>
+ * <li>4 bytes - chunk size</li>
+ * <li>8 bytes - length of the original file</li>
+ * <li>16 bytes - salt</li>
+ * </ul>
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+class SegmentedFormat {
+
+    /**
+     * Magic bytes at the start of every segmented file.
+     */
+    private static final byte[] MAGIC = { 'M', 'Y', 'S', 'H', 'S', 'E', 'G' };
+    /**
+     * Version of the format. Versions 1 (unauthenticated AES/CTR chunks) and 2 (AES/GCM chunks without the salt) reused
+     * nonces across files and aren't supported.
+     */
+    private static final byte VERSION = 3;
+    /**
+     * Name of the transformation used to crypt chunks.
+     */
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    /**
+     * Length of the authentication tag that follows every chunk, in bytes.
+     */
+    static final int TAG_LENGTH = 16;
+    /**
+     * Length of the AES/GCM nonce in bytes.
+     */
+    private static final int NONCE_LENGTH = 12;
+    /**
+     * Length of the salt in bytes.
+     */
+    private static final int SALT_LENGTH = 16;
+    /**
+     * Length of the header in bytes.
+     */
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + 8 + SALT_LENGTH;
+    /**
+     * Default chunk size, 1MB.
+     */
+    static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    /**
+     * AES block size in bytes.
+     */
+    private static final int BLOCK_SIZE = 16;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Size of one chunk of the original file.
+     */
+    final int chunkSize;
+    /**
+     * Length of the original file.
+     */
+    final long plainLength;
+    /**
+     * Salt of the file.
+     */
+    private final byte[] salt;
+
+    private SegmentedFormat(int chunkSize, long plainLength, byte[] salt) {
+        this.chunkSize = chunkSize;
+        this.plainLength = plainLength;
+        this.salt = salt;
+    }
+
+    /**
+     * Creates the header of a new file with a new random salt.
+     *
+     * @param chunkSize size of one chunk of the original file
+     * @param plainLength length of the original file
+     * @return header of the file
+     */
+    static SegmentedFormat create(int chunkSize, long plainLength) {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return new SegmentedFormat(chunkSize, plainLength, salt);
+    }
+
+    /**
+     * @return number of chunks in the file
+     */
+    long chunkCount() {
+        return (plainLength + chunkSize - 1) / chunkSize;
+    }
+
+    /**
+     * @param chunk chunk index
+     * @return length of the chunk in the original file
+     */
+    int plainChunkLength(long chunk) {
+        return (int) Math.min(chunkSize, plainLength - chunk * chunkSize);
+    }
+
+    /**
+     * @param position position in the original file
+     * @return chunk index of the byte at given position of the original file
+     */
+    long chunkOf(long position) {
+        return position / chunkSize;
+    }
+
+    /**
+     * @param chunk chunk index
+     * @return position of the chunk in the encrypted file
+     */
+    long encryptedPosition(long chunk) {
+        return HEADER_LENGTH + chunk * (chunkSize + TAG_LENGTH);
+    }
+
+    /**
+     * @return length of the encrypted file
+     */
+    long encryptedLength() {
+        return HEADER_LENGTH + plainLength + chunkCount() * TAG_LENGTH;
+    }
+
+    /**
+     * Returns parameters used to crypt the chunk. Callers crypting many chunks should salt the initialization vector
+     * once, see {@link #salted(byte[])}.
+     *
+     * @param iv initialization vector, already salted
+     * @param chunk chunk index
+     * @return parameters of the chunk
+     */
+    GCMParameterSpec parametersFor(byte[] iv, long chunk) {
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonceFor(iv, chunk));
+    }
+
+    /**
+     * Mixes the salt of the file into the initialization vector.
+     *
+     * @param iv initialization vector
+     * @return initialization vector of this file, first 16 bytes of SHA-256 of the initialization vector and the salt
+     */
+    byte[] salted(byte[] iv) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(iv);
+            sha.update(salt);
+            return Arrays.copyOf(sha.digest(), BLOCK_SIZE);
+        } catch (NoSuchAlgorithmException nsae) {
+            // every Java platform has a SHA-256 algorithm
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /**
+     * Derives the nonce of the chunk by xoring the chunk index into the last 8 bytes of the first 12 bytes of the
+     * initialization vector.
+     *
+     * @param iv initialization vector
+     * @param chunk chunk index
+     * @return nonce of the chunk
+     */
+    private static byte[] nonceFor(byte[] iv, long chunk) {
+        byte[] nonce = Arrays.copyOf(iv, NONCE_LENGTH);
+        for (int i = NONCE_LENGTH - 1; i >= NONCE_LENGTH - 8; i--) {
+            nonce[i] ^= (byte) chunk;
+            chunk >>>= 8;
+        }
+        return nonce;
+    }
+
+    /**
+     * Writes the header to the start of the channel.
+     *
+     * @param channel channel to write to
+     * @throws IOException if writing fails
+     */
+    void write(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(toBytes());
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    /**
+     * @return header as it is written to the file
+     */
+    byte[] toBytes() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(MAGIC).put(VERSION).putInt(chunkSize).putLong(plainLength).put(salt);
+        return header.array();
+    }
+
+    /**
+     * Reads the header from the start of the channel.
+     *
+     * @param channel channel to read from
+     * @return read header, or <code>null</code> if the channel doesn't contain a segmented file
+     * @throws IOException if reading fails
+     */
+    static SegmentedFormat read(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                return null;
+            }
+        }
+        header.flip();
+
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            return null;
+        }
+
+        byte version = header.get();
+        int chunkSize = header.getInt();
+        long plainLength = header.getLong();
+        if (version != VERSION || chunkSize <= 0 || chunkSize % BLOCK_SIZE != 0 || plainLength < 0) {
+            return null;
+        }
+
+        byte[] salt = new byte[SALT_LENGTH];
+        header.get(salt);
+        return new SegmentedFormat(chunkSize, plainLength, salt);
+    }
+
+    /**
+     * Checks if the file is in segmented format.
+     *
+     * @param fileName path to the file
+     * @return <code>true</code> if it is, <code>false</code> otherwise
+     */
+    static boolean isSegmented(String fileName) {
+        Path path = Paths.get(fileName);
+        if (!Files.isRegularFile(path)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel) != null;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+}
@@ -1,16 +1,38 @@
 package hr.fer.zemris.crypto;
 
+import hr.fer.zemris.util.RateLimiter;
 import hr.fer.zemris.util.Utility;
 
 import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
 
 /**
- * This class is used for calculating SHA-1 file digest.
+ * This class is used for calculating SHA-1 file digest. It can calculate other digests as well, and several digests of
+ * the same file at once, in which case the file is read only once and every read buffer is fed to all of the digests.
+ * Besides {@link MessageDigest} algorithms, <code>CRC32C</code> and <code>CRC32</code> checksums are supported.
  * 
  * @author Filip Hrenić
  * @version 1.0
@@ -18,10 +40,36 @@ import java.security.NoSuchAlgorithmException;
 public class ShaChecker {
 
     private static final int BUFFER_CAPACITY = 4096;
+    /**
+     * Size of the buffers shared by the digests that are calculated on separate threads.
+     */
+    private static final int SHARED_BUFFER_CAPACITY = 1 << 16;
+    /**
+     * Number of shared buffers, the file is read into one while the digests are still updated from the others.
+     */
+    private static final int SHARED_BUFFERS = 8;
+    /**
+     * Default leaf size of the tree digest, 1MB.
+     */
+    public static final int DEFAULT_LEAF_SIZE = 1 << 20;
+    /**
+     * Smallest leaf size of the tree digest, 512B. Digest of a smaller leaf would be almost as long as the leaf.
+     */
+    public static final int MIN_LEAF_SIZE = 1 << 9;
+    /**
+     * Largest leaf size of the tree digest, 16MB. Every thread holds a buffer of one leaf.
+     */
+    public static final int MAX_LEAF_SIZE = 1 << 24;
 
-    private MessageDigest shaDigest;
+    private final MessageDigest[] shaDigests;
+    private byte[][] digests;
     private byte[] digest;
+    private TreeDigest tree;
     private final String fileName;
+    /**
+     * Limiter of the rate the file is read at.
+     */
+    private RateLimiter limiter = RateLimiter.session();
 
     /**
      * Creates a new ShaChecker that calculates SHA-1 file digest of given file.
@@ -29,22 +77,235 @@ public class ShaChecker {
      * @param fileName
      */
     public ShaChecker(String fileName) {
+        this(fileName, "SHA-1");
+    }
+
+    /**
+     * Creates a new ShaChecker that calculates the file digests of given file with given algorithms. First algorithm
+     * is the main one, its digest is returned by {@link #getDigest()} and used for tree digests.
+     * 
+     * @param fileName
+     * @param algorithms names of the algorithms, i.e. <code>SHA-1</code>, <code>SHA-256</code> or <code>CRC32C</code>
+     * @throws IllegalArgumentException if there are no algorithms or an algorithm isn't supported
+     */
+    public ShaChecker(String fileName, String... algorithms) {
         this.fileName = fileName;
 
+        if (algorithms.length == 0) {
+            throw new IllegalArgumentException("At least one digest algorithm is needed.");
+        }
+        shaDigests = new MessageDigest[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            try {
+                shaDigests[i] = newDigest(algorithms[i]);
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new IllegalArgumentException("Digest algorithm " + algorithms[i] + " isn't supported.");
+            }
+        }
+    }
+
+    /**
+     * Creates a digest of given algorithm. Names of the algorithms are case insensitive.
+     * 
+     * @param algorithm name of the algorithm
+     * @return new digest
+     * @throws NoSuchAlgorithmException if the algorithm isn't supported
+     */
+    static MessageDigest newDigest(String algorithm) throws NoSuchAlgorithmException {
+        String name = algorithm.toUpperCase();
+        switch (name) {
+        case "CRC32C":
+            return new ChecksumDigest(name, new CRC32C());
+        case "CRC32":
+            return new ChecksumDigest(name, new CRC32());
+        default:
+            return MessageDigest.getInstance(name);
+        }
+    }
+
+    /**
+     * Sets the limiter the file is read through, default is the limiter of the session.
+     * 
+     * @param limiter limiter of the rate
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * @param algorithm name of the algorithm
+     * @return <code>true</code> if the algorithm is supported, <code>false</code> otherwise
+     */
+    public static boolean isSupported(String algorithm) {
         try {
-            shaDigest = MessageDigest.getInstance("SHA-1");
+            newDigest(algorithm);
+            return true;
         } catch (NoSuchAlgorithmException nsae) {
-            // ignoring it, because there is a SHA-1 algorithm
+            return false;
         }
     }
 
     /**
      * Calculates the digest that {@link MessageDigest} digested.
+     * 
+     * @return <code>true</code> if the digest was calculated, <code>false</code> if the file couldn't be read
+     */
+    public boolean calculateDigest() {
+        return calculateDigest(false);
+    }
+
+    /**
+     * Calculates the digests of all algorithms in one pass over the file. If there is more than one algorithm, digests
+     * can be updated on separate threads: the file is read into a few rotating buffers, and every digest reads the
+     * buffers in order on its own thread, so the file is still read only once.
+     * 
+     * @param fanOut <code>true</code> if the digests should be updated on separate threads
+     * @return <code>true</code> if the digests were calculated, <code>false</code> if the file couldn't be read
      */
-    public void calculateDigest() {
-        if (this.readFile()) {
-            digest = shaDigest.digest();
+    public boolean calculateDigest(boolean fanOut) {
+        boolean read = (fanOut && shaDigests.length > 1) ? this.readFileFanOut() : this.readFile();
+        if (read) {
+            digests = new byte[shaDigests.length][];
+            for (int i = 0; i < shaDigests.length; i++) {
+                digests[i] = shaDigests[i].digest();
+            }
+            digest = digests[0];
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * Calculates the digest, or takes it from the cache if the file hasn't changed since it was last digested. Newly
+     * calculated digest is stored in the cache.
+     * 
+     * @param cache digest cache
+     * @return <code>true</code> if the digest was calculated, <code>false</code> if the file couldn't be read
+     */
+    public boolean calculateDigest(DigestCache cache) {
+        return calculateDigest(cache, false);
+    }
+
+    /**
+     * Calculates the digests, or takes them from the cache if the file hasn't changed since it was last digested. File
+     * is read only if a digest of any of the algorithms isn't cached, and then all of the digests are stored in the
+     * cache.
+     * 
+     * @param cache digest cache
+     * @param fanOut <code>true</code> if the digests should be updated on separate threads
+     * @return <code>true</code> if the digests were calculated, <code>false</code> if the file couldn't be read
+     * @see #calculateDigest(boolean)
+     */
+    public boolean calculateDigest(DigestCache cache, boolean fanOut) {
+        Path path = Paths.get(fileName);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException ioe) {
+            System.err.print("Error occured while trying to read the file: " + fileName);
+            return false;
+        }
+
+        byte[][] cached = new byte[shaDigests.length][];
+        for (int i = 0; i < shaDigests.length; i++) {
+            cached[i] = cache.lookup(path, shaDigests[i].getAlgorithm(), attrs);
+            if (cached[i] == null) {
+                if (!calculateDigest(fanOut)) {
+                    return false;
+                }
+                for (int j = 0; j < shaDigests.length; j++) {
+                    cache.store(path, shaDigests[j].getAlgorithm(), attrs, digests[j]);
+                }
+                return true;
+            }
+        }
+        digests = cached;
+        digest = digests[0];
+        return true;
+    }
+
+    /**
+     * Calculates the tree digest of the file (see {@link TreeDigest}). Leaves are read from the file at their
+     * positions and digested on a pool of threads, so one large file is digested on many cores. Calculated digest is
+     * the root of the tree.
+     * 
+     * @param leafSize size of one leaf, from {@link #MIN_LEAF_SIZE} to {@link #MAX_LEAF_SIZE}
+     * @param threads number of threads
+     * @return <code>true</code> if the digest was calculated, <code>false</code> if the file couldn't be read
+     * @throws IllegalArgumentException if the leaf size is out of range or too small for the file
+     */
+    public boolean calculateTreeDigest(int leafSize, int threads) {
+        if (leafSize < MIN_LEAF_SIZE || leafSize > MAX_LEAF_SIZE) {
+            throw new IllegalArgumentException("Leaf size must be from " + MIN_LEAF_SIZE + " to " + MAX_LEAF_SIZE
+                    + " bytes.");
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long count = TreeDigest.leafCount(size, leafSize);
+            if (count > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Leaf size is too small for file " + fileName);
+            }
+
+            byte[][] leaves = new byte[(int) count][];
+            AtomicInteger nextLeaf = new AtomicInteger();
+            String algorithm = shaDigests[0].getAlgorithm();
+
+            List<Callable<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < Math.min(threads, count); i++) {
+                workers.add(() -> {
+                    MessageDigest leafDigest = newDigest(algorithm);
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(leafSize);
+
+                    for (int leaf = nextLeaf.getAndIncrement(); leaf < leaves.length; leaf = nextLeaf
+                            .getAndIncrement()) {
+                        long position = (long) leaf * leafSize;
+                        buffer.clear().limit((int) Math.min(leafSize, size - position));
+                        while (buffer.hasRemaining()) {
+                            if (channel.read(buffer, position + buffer.position()) < 0) {
+                                throw new IOException("Unexpected end of file " + fileName);
+                            }
+                        }
+                        limiter.acquire(buffer.position());
+                        buffer.flip();
+
+                        TreeDigest.startLeaf(leafDigest);
+                        leafDigest.update(buffer);
+                        leaves[leaf] = leafDigest.digest();
+                    }
+                    return null;
+                });
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(workers.size());
+            try {
+                for (Future<Void> worker : pool.invokeAll(workers)) {
+                    worker.get();
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+
+            tree = new TreeDigest(algorithm, leafSize, size, leaves);
+            digest = tree.getRoot();
+            return true;
+
+        } catch (IOException | ExecutionException | NoSuchAlgorithmException e) {
+            System.err.print("Error occured while trying to read the file: " + fileName);
+            return false;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the tree digest calculated by {@link #calculateTreeDigest(int, int)}.
+     * 
+     * @return tree digest, or <code>null</code> if it wasn't calculated
+     */
+    public TreeDigest getTree() {
+        return tree;
     }
 
     /**
@@ -56,6 +317,19 @@ public class ShaChecker {
         return Utility.byteToHex(digest);
     }
 
+    /**
+     * Returns the calculated digests of all algorithms.
+     * 
+     * @return string representations of the digests mapped by algorithm, in order of the algorithms
+     */
+    public Map<String, String> getDigests() {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (int i = 0; i < shaDigests.length; i++) {
+            result.put(shaDigests[i].getAlgorithm(), Utility.byteToHex(digests[i]));
+        }
+        return result;
+    }
+
     /**
      * Checks if the two digests are the same.
      * 
@@ -81,7 +355,10 @@ public class ShaChecker {
                 if (numOfBytes < 1) {
                     break;
                 }
-                shaDigest.update(buffer, 0, numOfBytes);
+                limiter.acquire(numOfBytes);
+                for (MessageDigest shaDigest : shaDigests) {
+                    shaDigest.update(buffer, 0, numOfBytes);
+                }
             }
             is.close();
             return true; // reading succeded
@@ -91,4 +368,67 @@ public class ShaChecker {
             return false;
         }
     }
+
+    /**
+     * Tries to read a file, updating every digest on its own thread. File is read into a few shared buffers in turn.
+     * Digest threads only read the buffers, and a buffer is refilled once all of the digests are done with it.
+     * 
+     * @return <code>true</code> if reading succeded, <code>false</code> otherwise
+     */
+    private boolean readFileFanOut() {
+        // single thread per digest keeps the updates of every digest in order
+        ExecutorService[] updaters = new ExecutorService[shaDigests.length];
+        for (int i = 0; i < updaters.length; i++) {
+            updaters[i] = Executors.newSingleThreadExecutor();
+        }
+        byte[][] buffers = new byte[SHARED_BUFFERS][SHARED_BUFFER_CAPACITY];
+        Future<?>[][] pending = new Future<?>[SHARED_BUFFERS][];
+
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            for (int slot = 0;; slot = (slot + 1) % SHARED_BUFFERS) {
+                if (pending[slot] != null) {
+                    for (Future<?> update : pending[slot]) {
+                        update.get();
+                    }
+                }
+
+                byte[] buffer = buffers[slot];
+                ByteBuffer target = ByteBuffer.wrap(buffer);
+                while (target.hasRemaining() && channel.read(target) >= 0) {
+                    // filling the whole buffer
+                }
+                int numOfBytes = target.position();
+                if (numOfBytes == 0) {
+                    break;
+                }
+                limiter.acquire(numOfBytes);
+
+                pending[slot] = new Future<?>[shaDigests.length];
+                for (int i = 0; i < shaDigests.length; i++) {
+                    MessageDigest shaDigest = shaDigests[i];
+                    pending[slot][i] = updaters[i].submit(() -> shaDigest.update(buffer, 0, numOfBytes));
+                }
+            }
+
+            for (Future<?>[] updates : pending) {
+                if (updates != null) {
+                    for (Future<?> update : updates) {
+                        update.get();
+                    }
+                }
+            }
+            return true; // reading succeded
+
+        } catch (IOException | ExecutionException e) {
+            System.err.print("Error occured while trying to read the file: " + fileName);
+            return false;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            for (ExecutorService updater : updaters) {
+                updater.shutdownNow();
+            }
+        }
+    }
 }
@@ -0,0 +1,301 @@
+package hr.fer.zemris.crypto;
+
+import hr.fer.zemris.util.Utility;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tree digest (Merkle tree) of a file. File is split into leaves of fixed size, every leaf is digested on its own and
+ * leaf digests are combined pairwise until only the root digest is left. Leaf digests are prefixed with byte 0 and
+ * inner digests with byte 1, so a leaf can't be mistaken for an inner node. Node without a pair is moved up unchanged.
+ * <p>
+ * Leaf digests can be saved to a text file and loaded later to find out which leaves of the file changed. First line
+ * of the file is <code>treedigest &lt;algorithm&gt; &lt;leaf size&gt; &lt;file size&gt;</code>, every other line is a
+ * hex-encoded leaf digest.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class TreeDigest {
+
+    private static final String HEADER = "treedigest";
+
+    private final String algorithm;
+    private final int leafSize;
+    private final long fileSize;
+    private final byte[][] leaves;
+    private final byte[] root;
+
+    /**
+     * @param algorithm digest algorithm
+     * @param leafSize size of one leaf
+     * @param fileSize size of the file
+     * @param leaves leaf digests
+     * @throws NoSuchAlgorithmException if the algorithm isn't supported
+     */
+    TreeDigest(String algorithm, int leafSize, long fileSize, byte[][] leaves) throws NoSuchAlgorithmException {
+        this.algorithm = algorithm;
+        this.leafSize = leafSize;
+        this.fileSize = fileSize;
+        this.leaves = leaves;
+        this.root = combine(ShaChecker.newDigest(algorithm), leaves);
+    }
+
+    /**
+     * @param fileSize size of the file
+     * @param leafSize size of one leaf
+     * @return number of leaves, empty file has one empty leaf
+     */
+    static long leafCount(long fileSize, int leafSize) {
+        return Math.max(1, fileSize / leafSize + (fileSize % leafSize == 0 ? 0 : 1));
+    }
+
+    /**
+     * @param text text to check
+     * @return <code>true</code> if every character of the text is a hex digit, <code>false</code> otherwise
+     */
+    private static boolean isHex(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.digit(text.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Resets the digest and prefixes it for leaf data. Leaf digest is what the digest returns after it's updated with
+     * the leaf data.
+     *
+     * @param digest digest to prepare
+     */
+    static void startLeaf(MessageDigest digest) {
+        digest.reset();
+        digest.update((byte) 0);
+    }
+
+    /**
+     * Combines the leaf digests level by level up to the root.
+     *
+     * @param digest digest used for inner nodes
+     * @param leaves leaf digests
+     * @return root digest
+     */
+    private static byte[] combine(MessageDigest digest, byte[][] leaves) {
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                if (2 * i + 1 == level.length) {
+                    parents[i] = level[2 * i];
+                    continue;
+                }
+                digest.reset();
+                digest.update((byte) 1);
+                digest.update(level[2 * i]);
+                digest.update(level[2 * i + 1]);
+                parents[i] = digest.digest();
+            }
+            level = parents;
+        }
+        return level[0];
+    }
+
+    /**
+     * @return root digest
+     */
+    public byte[] getRoot() {
+        return root.clone();
+    }
+
+    /**
+     * @return number of leaves
+     */
+    public int getLeafCount() {
+        return leaves.length;
+    }
+
+    /**
+     * @return size of one leaf
+     */
+    public int getLeafSize() {
+        return leafSize;
+    }
+
+    /**
+     * @return digest algorithm
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Finds the leaves that differ from the leaves of the other tree digest. Leaves that exist in only one of them are
+     * different as well.
+     *
+     * @param other tree digest of an older version of the file
+     * @return indexes of different leaves
+     * @throws IllegalArgumentException if digests were made with different algorithms or leaf sizes
+     */
+    public List<Integer> changedLeaves(TreeDigest other) {
+        if (!algorithm.equalsIgnoreCase(other.algorithm) || leafSize != other.leafSize) {
+            throw new IllegalArgumentException("Tree digests were made with different algorithms or leaf sizes.");
+        }
+
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < Math.max(leaves.length, other.leaves.length); i++) {
+            if (i >= leaves.length || i >= other.leaves.length || !Arrays.equals(leaves[i], other.leaves[i])) {
+                changed.add(i);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Saves the leaf digests to a text file.
+     *
+     * @param file where to save
+     * @throws IOException if writing fails
+     */
+    public void save(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(HEADER + " " + algorithm + " " + leafSize + " " + fileSize);
+            writer.newLine();
+            for (byte[] leaf : leaves) {
+                writer.write(Utility.byteToHex(leaf));
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Loads leaf digests saved by {@link #save(Path)}.
+     *
+     * @param file where to load from
+     * @return loaded tree digest
+     * @throws IOException if reading fails or the file isn't a saved tree digest or is corrupt
+     */
+    public static TreeDigest load(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String[] header = String.valueOf(reader.readLine()).split(" ");
+            if (header.length != 4 || !header[0].equals(HEADER)) {
+                throw new IOException(file + " isn't a saved tree digest.");
+            }
+
+            int leafSize = Integer.parseInt(header[2]);
+            long fileSize = Long.parseLong(header[3]);
+            if (leafSize <= 0 || fileSize < 0) {
+                throw new IOException(file + " is corrupt, leaf size must be positive and file size not negative.");
+            }
+            long count = leafCount(fileSize, leafSize);
+            int digestLength = ShaChecker.newDigest(header[1]).getDigestLength();
+
+            List<byte[]> leaves = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // more leaves than the file size allows aren't read at all
+                if (leaves.size() == count) {
+                    throw new IOException(file + " has wrong number of leaves.");
+                }
+                line = line.trim();
+                if (line.length() != 2 * digestLength || !isHex(line)) {
+                    throw new IOException(file + " is corrupt, leaf " + leaves.size() + " isn't a " + header[1]
+                            + " digest.");
+                }
+                leaves.add(Utility.hexToByte(line));
+            }
+            if (leaves.size() != count) {
+                throw new IOException(file + " has wrong number of leaves.");
+            }
+
+            return new TreeDigest(header[1], leafSize, fileSize, leaves.toArray(new byte[leaves.size()][]));
+        } catch (NumberFormatException | NoSuchAlgorithmException e) {
+            throw new IOException(file + " isn't a saved tree digest.", e);
+        }
+    }
+
+    /**
+     * Builds a tree digest from bytes that stream through it, so a file can be digested while it's being read for
+     * something else (i.e. copied). Bytes must be given in order, from the start of the file.
+     */
+    public static class Builder {
+
+        private final MessageDigest digest;
+        private final int leafSize;
+        private final List<byte[]> leaves = new ArrayList<>();
+        /**
+         * Number of bytes in the current leaf.
+         */
+        private int inLeaf;
+        private long size;
+
+        /**
+         * @param algorithm digest algorithm
+         * @param leafSize size of one leaf
+         * @throws NoSuchAlgorithmException if the algorithm isn't supported
+         * @throws IllegalArgumentException if the leaf size isn't positive
+         */
+        public Builder(String algorithm, int leafSize) throws NoSuchAlgorithmException {
+            if (leafSize < 1) {
+                throw new IllegalArgumentException("Leaf size must be positive.");
+            }
+            this.digest = ShaChecker.newDigest(algorithm);
+            this.leafSize = leafSize;
+            startLeaf(digest);
+        }
+
+        /**
+         * Digests the remaining bytes of the buffer, buffer is consumed.
+         *
+         * @param bytes next bytes of the file
+         */
+        public void update(ByteBuffer bytes) {
+            int limit = bytes.limit();
+            while (bytes.hasRemaining()) {
+                int length = Math.min(bytes.remaining(), leafSize - inLeaf);
+                bytes.limit(bytes.position() + length);
+                digest.update(bytes);
+                bytes.limit(limit);
+
+                inLeaf += length;
+                size += length;
+                if (inLeaf == leafSize) {
+                    leaves.add(digest.digest());
+                    startLeaf(digest);
+                    inLeaf = 0;
+                }
+            }
+        }
+
+        /**
+         * Finishes the last leaf and combines the leaves.
+         *
+         * @return tree digest of all given bytes
+         */
+        public TreeDigest build() {
+            if (inLeaf > 0 || leaves.isEmpty()) {
+                leaves.add(digest.digest());
+                startLeaf(digest);
+                inLeaf = 0;
+            }
+            try {
+                return new TreeDigest(digest.getAlgorithm(), leafSize, size,
+                        leaves.toArray(new byte[leaves.size()][]));
+            } catch (NoSuchAlgorithmException nsae) {
+                // algorithm was already used by the builder
+                throw new IllegalStateException(nsae);
+            }
+        }
+    }
+}
@@ -8,18 +8,23 @@ import hr.fer.zemris.shell.command.DeleteShellCommand;
 import hr.fer.zemris.shell.command.EncryptShellCommand;
 import hr.fer.zemris.shell.command.ExitShellCommand;
 import hr.fer.zemris.shell.command.GetshaShellCommand;
+import hr.fer.zemris.shell.command.HeadShellCommand;
 import hr.fer.zemris.shell.command.HexdumpShellCommand;
 import hr.fer.zemris.shell.command.LsShellCommand;
 import hr.fer.zemris.shell.command.MkdirShellCommand;
 import hr.fer.zemris.shell.command.ShellCommand;
+import hr.fer.zemris.shell.command.StatsShellCommand;
 import hr.fer.zemris.shell.command.SymbolShellCommand;
+import hr.fer.zemris.shell.command.TailShellCommand;
+import hr.fer.zemris.shell.command.ThrottleShellCommand;
 import hr.fer.zemris.shell.command.TreeShellCommand;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -31,12 +36,16 @@ import java.util.Map;
  * <li><b>cat arg1 [arg2]</b> (see {@link CatShellCommand} for more info)</li>
  * <li><b>charsets</b> (see {@link CharsetsShellCommand} for more info)</li>
  * <li><b>copy arg1 arg2</b> (see {@link CopyShellCommand} for more info)</li>
- * <li><b>getsha arg1</b> (see {@link GetshaShellCommand} for more info)</li>
+ * <li><b>getsha arg1 [arg2 ...]</b> (see {@link GetshaShellCommand} for more info)</li>
  * <li><b>exit</b> (see {@link ExitShellCommand} for more info)</li>
+ * <li><b>head [-n N] arg1 [arg2]</b> (see {@link HeadShellCommand} for more info)</li>
  * <li><b>hexdump arg1</b> (see {@link HexdumpShellCommand} for more info)</li>
  * <li><b>ls</b> (see {@link LsShellCommand} for more info)</li>
  * <li><b>mkdir arg1</b> (see {@link MkdirShellCommand} for more info)</li>
+ * <li><b>stats</b> (see {@link StatsShellCommand} for more info)</li>
  * <li><b>symbol arg1 [arg2]</b> (see {@link SymbolShellCommand} for more info)</li>
+ * <li><b>tail [-n N] arg1 [arg2]</b> (see {@link TailShellCommand} for more info)</li>
+ * <li><b>throttle</b> (see {@link ThrottleShellCommand} for more info)</li>
  * <li><b>tree arg1</b> (see {@link TreeShellCommand} for more info)</li>
  * </ul>
  * 
@@ -56,14 +65,18 @@ public class MyShell {
         commands.put("getsha", new GetshaShellCommand()); // added
         commands.put("encrypt", new EncryptShellCommand()); // added
         commands.put("exit", new ExitShellCommand());
+        commands.put("head", new HeadShellCommand());
         commands.put("hexdump", new HexdumpShellCommand());
         commands.put("ls", new LsShellCommand());
         commands.put("mkdir", new MkdirShellCommand());
+        commands.put("stats", new StatsShellCommand());
         commands.put("symbol", new SymbolShellCommand());
+        commands.put("tail", new TailShellCommand());
+        commands.put("throttle", new ThrottleShellCommand());
         commands.put("tree", new TreeShellCommand());
 
         BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
-        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        BufferedWriter out = new ShellOutput(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8);
 
         try {
             out.write("Welcome to MyShell v 1.0");
@@ -155,7 +168,7 @@ public class MyShell {
      * @param str string to split
      * @return an array of strings from the parameter
      */
-    private static String[] mySplit(String str) {
+    static String[] mySplit(String str) {
 
         int argsCapacity = 10;
 
@@ -0,0 +1,55 @@
+package hr.fer.zemris.shell;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Output stream of the {@link MyShell} that also gives access to the bytes under the characters. Commands that already
+ * have bytes in the output encoding can write them straight to the byte channel (i.e. with
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)}) instead of decoding and encoding
+ * them again.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class ShellOutput extends BufferedWriter {
+
+    private final WritableByteChannel channel;
+    private final Charset charset;
+
+    /**
+     * @param os stream the output is written to
+     * @param charset encoding of the output
+     */
+    public ShellOutput(OutputStream os, Charset charset) {
+        super(new OutputStreamWriter(os, charset));
+        this.charset = charset;
+        // file channel of a file stream lets transferTo copy inside the kernel
+        this.channel = os instanceof FileOutputStream ? ((FileOutputStream) os).getChannel() : Channels.newChannel(os);
+    }
+
+    /**
+     * @return encoding of the output
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Returns the byte channel of the output. Characters written before are flushed first, so bytes written to the
+     * channel come after them.
+     *
+     * @return byte channel of the output
+     * @throws IOException if flushing fails
+     */
+    public WritableByteChannel getChannel() throws IOException {
+        flush();
+        return channel;
+    }
+}
@@ -1,7 +1,9 @@
 package hr.fer.zemris.shell.command;
 
 import hr.fer.zemris.shell.MyShell;
+import hr.fer.zemris.shell.ShellOutput;
 import hr.fer.zemris.shell.ShellStatus;
+import hr.fer.zemris.util.Arguments;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
@@ -10,9 +12,17 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * This class is used to print out the contet of a file, using a specified charset (if none is provided, default is
@@ -30,10 +40,19 @@ public class CatShellCommand implements ShellCommand {
 
     /**
      * Prints the file to the output stream. First argument must be the file which you want to print. Second argument is
-     * used charset. If charset isn't provided, the default one is used.
+     * used charset. If charset isn't provided, the default one is used. If the charset is the same as the encoding of
+     * the shell output, file isn't decoded at all and its bytes are transferred straight to the output. Options are
+     * <ul>
+     * <li><b>--raw</b> - transfers the bytes of the file to the output as they are, whatever the charset</li>
+     * <li><b>--follow</b> - keeps writing whatever is appended to the file until enter is pressed, even if the file is
+     * truncated or replaced (see {@link FileFollower})</li>
+     * </ul>
      */
     @Override
-    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] args) {
+    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] rawArgs) {
+
+        Arguments arguments = new Arguments(rawArgs);
+        String[] args = arguments.getPositional();
 
         if (args.length != 1 && args.length != 2) {
             return MyShell.error("Must provide unleast one argument.", out);
@@ -44,18 +63,97 @@ public class CatShellCommand implements ShellCommand {
         // setting charset
         if (args.length == 2) {
             try {
-                charset = Charset.forName(args[1]);
-            } catch (IllegalCharsetNameException icne) {
-                return MyShell.error("Unknown charset " + args[1], out);
-            } catch (UnsupportedCharsetException uce) {
-                return MyShell.error("Provided charset " + args[1] + " not supported.", out);
+                charset = charsetFor(args[1]);
+            } catch (IllegalArgumentException iae) {
+                return MyShell.error(iae.getMessage(), out);
             }
         }
 
+        boolean transfer = out instanceof ShellOutput
+                && (arguments.hasOption("raw") || charset.equals(((ShellOutput) out).getCharset()));
+
         // reading from file and printing it out
         try {
-            BufferedReader fileReader = new BufferedReader(new InputStreamReader(new BufferedInputStream(
-                    new FileInputStream(args[0])), charset));
+            if (arguments.hasOption("follow")) {
+                follow(Paths.get(args[0]), charset, transfer, in, out);
+            } else if (transfer) {
+                transfer(args[0], (ShellOutput) out);
+            } else {
+                decode(args[0], charset, out);
+            }
+            out.newLine();
+            out.flush();
+
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            return MyShell.error("File " + args[0] + " doesn't exist.", out);
+        } catch (IOException | ExecutionException e) {
+            return MyShell.error("Error occured while reading file.", out);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return MyShell.error("Following interrupted.", out);
+        }
+
+        return ShellStatus.CONTINUE;
+    }
+
+    /**
+     * Returns the charset with given name. Used by every command that reads text in a charset provided by user.
+     * 
+     * @param name name of the charset
+     * @return charset
+     * @throws IllegalArgumentException if there is no such charset
+     */
+    static Charset charsetFor(String name) {
+        try {
+            return Charset.forName(name);
+        } catch (IllegalCharsetNameException icne) {
+            throw new IllegalArgumentException("Unknown charset " + name);
+        } catch (UnsupportedCharsetException uce) {
+            throw new IllegalArgumentException("Provided charset " + name + " not supported.");
+        }
+    }
+
+    /**
+     * Writes the file to the output stream and keeps writing whatever is appended to it on another thread, until a
+     * line is read from the input stream.
+     * 
+     * @param file file to follow
+     * @param charset charset of the file
+     * @param transfer <code>true</code> if the bytes should be transferred to the output without decoding
+     * @param in input stream
+     * @param out output stream
+     * @throws IOException if reading or writing fails
+     * @throws ExecutionException if following fails
+     * @throws InterruptedException if interrupted while waiting for the follower to stop
+     */
+    private static void follow(Path file, Charset charset, boolean transfer, BufferedReader in, BufferedWriter out)
+            throws IOException, ExecutionException, InterruptedException {
+
+        FileFollower follower = new FileFollower(file, charset, out, transfer);
+        FutureTask<Void> following = new FutureTask<>(follower);
+        Thread thread = new Thread(following, "cat --follow " + file);
+        thread.setDaemon(true);
+        thread.start();
+
+        try {
+            in.readLine(); // enter stops following
+        } finally {
+            follower.stop();
+        }
+        following.get();
+    }
+
+    /**
+     * Writes the file to the output stream by decoding it with the charset.
+     * 
+     * @param fileName path to the file
+     * @param charset charset of the file
+     * @param out output stream
+     * @throws IOException if reading or writing fails
+     */
+    private static void decode(String fileName, Charset charset, BufferedWriter out) throws IOException {
+        try (BufferedReader fileReader = new BufferedReader(new InputStreamReader(new BufferedInputStream(
+                new FileInputStream(fileName)), charset))) {
 
             char[] cbuf = new char[BUFFER_CAPACITY];
             while (true) {
@@ -65,16 +163,30 @@ public class CatShellCommand implements ShellCommand {
                 }
                 out.write(cbuf, 0, numOfChars);
             }
-            out.newLine();
-            out.flush();
-            fileReader.close();
-
-        } catch (FileNotFoundException fnfe) {
-            return MyShell.error("File " + args[0] + " doesn't exist.", out);
-        } catch (IOException ioe) {
-            return MyShell.error("Error occured while reading file.", out);
         }
+    }
 
-        return ShellStatus.CONTINUE;
+    /**
+     * Transfers the bytes of the file to the byte channel of the output, without decoding them. If both are files (or
+     * the output is a pipe or a socket) the bytes are copied inside the kernel.
+     * 
+     * @param fileName path to the file
+     * @param out output stream
+     * @throws IOException if reading or writing fails
+     */
+    private static void transfer(String fileName, ShellOutput out) throws IOException {
+        WritableByteChannel target = out.getChannel();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                long transferred = channel.transferTo(position, size - position, target);
+                if (transferred <= 0) {
+                    break; // file got shorter
+                }
+                position += transferred;
+            }
+        }
     }
 }
@@ -1,20 +1,25 @@
 package hr.fer.zemris.shell.command;
 
+import hr.fer.zemris.crypto.ShaChecker;
 import hr.fer.zemris.shell.MyShell;
 import hr.fer.zemris.shell.ShellStatus;
+import hr.fer.zemris.util.Arguments;
+import hr.fer.zemris.util.CopyVerifier;
+import hr.fer.zemris.util.DeltaCopier;
+import hr.fer.zemris.util.FileCopier;
+import hr.fer.zemris.util.RateLimiter;
+import hr.fer.zemris.util.ResumableCopier;
+import hr.fer.zemris.util.TreeCopier;
+import hr.fer.zemris.util.Utility;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
 
 /**
  * Used in {@link MyShell} class for copying files.
@@ -24,20 +29,56 @@ import java.nio.file.Paths;
  */
 public class CopyShellCommand implements ShellCommand {
 
-    /**
-     * Buffer capacity used for copying.
-     */
-    private static final int BUFFER_CAPACITY = 4096;
-
     /**
      * Needs two arguments to work properly. First argument is the path to the file being copied, second argument is the
-     * path to the new file.
+     * path to the new file. File is copied by the operating system when possible (see {@link FileCopier}). Options are
+     * <ul>
+     * <li><b>-p</b> - preserves modification time and permissions of the file</li>
+     * <li><b>-r</b> - first argument is a directory, the whole tree is copied into the destination directory (see
+     * {@link TreeCopier})</li>
+     * <li><b>--jobs N</b> - number of threads copying with <b>-r</b>, default is the number of processors</li>
+     * <li><b>--delta</b> - destination is an older version of the file, only the blocks that changed are written
+     * (see {@link DeltaCopier})</li>
+     * <li><b>--block N</b> - size of the blocks compared with <b>--delta</b>, from 512B to 1MB, default is 64KB</li>
+     * <li><b>--resume</b> - copies the file with a journal of checkpoints next to the destination, so a copy that was
+     * interrupted continues from the last checkpoint when the command is run with this option again (see
+     * {@link ResumableCopier})</li>
+     * <li><b>--verify</b> - digests the bytes while copying them, then reads the destination again and reports the
+     * ranges that differ from the source (see {@link CopyVerifier})</li>
+     * <li><b>--direct</b> - destination is read again with direct I/O, bypassing the cache, if the file system supports
+     * it</li>
+     * <li><b>--algorithm ALG</b> - digest algorithm used with <b>--verify</b>, default is SHA-1</li>
+     * <li><b>--limit RATE</b> - limits reading to RATE bytes per second, i.e. <code>50M</code>, on top of the limits of
+     * the session (see {@link ThrottleShellCommand})</li>
+     * <li><b>--iops N</b> - limits reading to N reads per second</li>
+     * </ul>
      */
     @Override
-    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] args) {
+    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] rawArgs) {
+        Arguments arguments;
+        int jobs;
+        int blockSize;
+        RateLimiter limiter;
+        try {
+            arguments = new Arguments(rawArgs, "jobs", "block", "algorithm", "limit", "iops");
+            jobs = arguments.getInt("jobs", Runtime.getRuntime().availableProcessors());
+            blockSize = arguments.getInt("block", DeltaCopier.DEFAULT_BLOCK_SIZE);
+            limiter = RateLimiter.forCommand(arguments.getSize("limit", 0), arguments.getLong("iops", 0));
+        } catch (IllegalArgumentException iae) {
+            return MyShell.error(iae.getMessage(), out);
+        }
+        String[] args = arguments.getPositional();
+
         if (args.length != 2) {
             return MyShell.error("Two paths needed to copy. Source and destination path.", out);
         }
+        if (jobs < 1) {
+            return MyShell.error("Number of threads must be positive.", out);
+        }
+        if (blockSize < DeltaCopier.MIN_BLOCK_SIZE || blockSize > DeltaCopier.MAX_BLOCK_SIZE) {
+            return MyShell.error("Block size must be from " + DeltaCopier.MIN_BLOCK_SIZE + " to "
+                    + DeltaCopier.MAX_BLOCK_SIZE + " bytes.", out);
+        }
 
         Path src = Paths.get(args[0]);
         Path dest = Paths.get(args[1]);
@@ -45,36 +86,200 @@ public class CopyShellCommand implements ShellCommand {
         if (!Files.exists(src)) {
             return MyShell.error("Provided source path doesn't exist.", out);
         }
+        if (arguments.hasOption("r")) {
+            if (arguments.hasOption("delta") || arguments.hasOption("resume") || arguments.hasOption("verify")) {
+                return MyShell.error("Options --delta, --resume and --verify can only be used for files.", out);
+            }
+            if (!Files.isDirectory(src)) {
+                return MyShell.error("Provided source path isn't a directory.", out);
+            }
+            if (dest.toAbsolutePath().normalize().startsWith(src.toAbsolutePath().normalize())) {
+                return MyShell.error("Destination can't be inside of the source directory.", out);
+            }
+            return copyTree(src, dest, jobs, arguments.hasOption("p"), limiter, out);
+        }
+        if (Files.isDirectory(src)) {
+            return MyShell.error("Provided source path is a directory, use -r to copy it.", out);
+        }
+        int modes = (arguments.hasOption("delta") ? 1 : 0) + (arguments.hasOption("resume") ? 1 : 0) + (arguments
+                .hasOption("verify") ? 1 : 0);
+        if (modes > 1) {
+            return MyShell.error("Only one of the options --delta, --resume and --verify can be used.", out);
+        }
+        String algorithm = arguments.getOption("algorithm", "SHA-1").toUpperCase();
+        if (!ShaChecker.isSupported(algorithm)) {
+            return MyShell.error("Unsupported algorithm " + algorithm + ".", out);
+        }
 
         // copying
         try {
+            if (Files.exists(dest) && Files.isSameFile(src, dest)) {
+                return MyShell.error("Source and destination are the same file.", out);
+            }
 
             out.write("Copying " + src.getFileName() + "...");
             out.newLine();
             out.flush();
 
-            InputStream is = new BufferedInputStream(new FileInputStream(src.toFile()));
-            OutputStream os = new BufferedOutputStream(new FileOutputStream(dest.toFile()));
-
-            byte[] buff = new byte[BUFFER_CAPACITY];
-            while (true) {
-                int numOfBytes = is.read(buff);
-                if (numOfBytes < 1) {
-                    break;
+            if (arguments.hasOption("delta")) {
+                return copyDelta(src, dest, blockSize, arguments.hasOption("p"), limiter, out);
+            }
+            if (arguments.hasOption("verify")) {
+                return copyVerified(src, dest, algorithm, arguments.hasOption("direct"), arguments.hasOption("p"),
+                        limiter, out);
+            }
+            if (arguments.hasOption("resume")) {
+                ResumableCopier copier = new ResumableCopier(src, dest);
+                copier.setRateLimiter(limiter);
+                copier.copy();
+                if (arguments.hasOption("p")) {
+                    FileCopier.copyAttributes(src, dest);
+                }
+                if (copier.getResumedFrom() > 0) {
+                    out.write(String.format("Resumed at %.1f MB, copied the remaining %.1f MB.", copier
+                            .getResumedFrom() / 1e6, copier.getCopied() / 1e6));
+                    out.newLine();
                 }
-                os.write(buff, 0, numOfBytes);
-                os.flush();
+            } else {
+                FileCopier.copy(src, dest, arguments.hasOption("p"), limiter);
             }
 
-            is.close();
-            os.close();
-
             out.write("Copying done. Created " + dest.getFileName() + ".");
             out.newLine();
             out.flush();
 
         } catch (IOException ioe) {
-            return MyShell.error("Error while copying file " + src.getFileName(), out);
+            return MyShell.error("Error while copying file " + src.getFileName() + ": " + ioe.getMessage(), out);
+        }
+
+        return ShellStatus.CONTINUE;
+    }
+
+    /**
+     * Copies the file while digesting it, then reads the destination again and writes the result of the comparison to
+     * the output stream.
+     *
+     * @param src file to copy
+     * @param dest where to copy it
+     * @param algorithm digest algorithm
+     * @param direct <code>true</code> if the destination should be read with direct I/O
+     * @param preserveAttributes <code>true</code> if modification time and permissions should be copied as well
+     * @param limiter limiter of the reading rate
+     * @param out output stream
+     * @return <code>CONTINUE</code> because the shell doesn't need to terminate
+     * @throws IOException if copying or writing to the output fails
+     */
+    private ShellStatus copyVerified(Path src, Path dest, String algorithm, boolean direct,
+            boolean preserveAttributes, RateLimiter limiter, BufferedWriter out) throws IOException {
+
+        CopyVerifier verifier = new CopyVerifier(src, dest, algorithm);
+        verifier.setRateLimiter(limiter);
+        List<Integer> differ;
+        try {
+            verifier.copy();
+            if (preserveAttributes) {
+                FileCopier.copyAttributes(src, dest);
+            }
+            differ = verifier.verify(direct);
+        } catch (NoSuchAlgorithmException nsae) {
+            return MyShell.error("Unsupported algorithm " + algorithm + ".", out);
+        }
+
+        if (direct && !verifier.isBypassed()) {
+            out.write("File system doesn't support direct I/O, destination was read through the cache.");
+            out.newLine();
+        }
+        if (differ.isEmpty()) {
+            out.write("Copying done. Verified " + dest.getFileName() + ", " + algorithm + " tree digest with leaves of "
+                    + CopyVerifier.LEAF_SIZE + " bytes " + Utility.byteToHex(verifier.getDigest().getRoot())
+                    + " (same as getsha --tree --leaf " + CopyVerifier.LEAF_SIZE + " --algorithms " + algorithm + ").");
+            out.newLine();
+        } else {
+            out.write("Verification failed, " + differ.size() + " of " + verifier.getDigest().getLeafCount()
+                    + " ranges of " + dest.getFileName() + " differ:");
+            out.newLine();
+            long size = Math.max(Files.size(src), Files.size(dest));
+            for (int leaf : differ) {
+                long start = (long) leaf * CopyVerifier.LEAF_SIZE;
+                out.write("  bytes " + start + "-" + (Math.min(start + CopyVerifier.LEAF_SIZE, size) - 1));
+                out.newLine();
+            }
+        }
+        out.flush();
+        return ShellStatus.CONTINUE;
+    }
+
+    /**
+     * Copies the file over an older version of it, writing only the blocks that changed, and writes how much was
+     * saved to the output stream.
+     *
+     * @param src file to copy
+     * @param dest older version of the file
+     * @param blockSize size of the compared blocks
+     * @param preserveAttributes <code>true</code> if modification time and permissions should be copied as well
+     * @param limiter limiter of the reading rate
+     * @param out output stream
+     * @return <code>CONTINUE</code> because the shell doesn't need to terminate
+     * @throws IOException if copying or writing to the output fails
+     */
+    private ShellStatus copyDelta(Path src, Path dest, int blockSize, boolean preserveAttributes, RateLimiter limiter,
+            BufferedWriter out) throws IOException {
+
+        DeltaCopier copier = new DeltaCopier(src, dest, blockSize);
+        copier.setRateLimiter(limiter);
+        copier.copy();
+        if (preserveAttributes) {
+            FileCopier.copyAttributes(src, dest);
+        }
+
+        out.write(String.format("Copying done. %d of %d blocks changed, wrote %.1f MB, saved %.1f MB.", copier
+                .getChangedBlocks(), copier.getBlocks(), copier.getWritten() / 1e6, copier.getSaved() / 1e6));
+        out.newLine();
+        out.flush();
+        return ShellStatus.CONTINUE;
+    }
+
+    /**
+     * Copies the source directory tree into the destination directory, at the end the summary is written to the output
+     * stream.
+     *
+     * @param src source directory
+     * @param dest destination directory
+     * @param jobs number of threads
+     * @param preserveAttributes <code>true</code> if modification times and permissions should be copied as well
+     * @param limiter limiter of the reading rate, shared by all files
+     * @param out output stream
+     * @return <code>CONTINUE</code> because the shell doesn't need to terminate
+     */
+    private ShellStatus copyTree(Path src, Path dest, int jobs, boolean preserveAttributes, RateLimiter limiter,
+            BufferedWriter out) {
+        TreeCopier copier = new TreeCopier(src, dest, jobs, preserveAttributes);
+        copier.setRateLimiter(limiter);
+
+        long start = System.nanoTime();
+        try {
+            copier.copy();
+        } catch (IOException ioe) {
+            copier.getFailed().add(src + " (" + ioe.getMessage() + ")");
+        }
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+
+        try {
+            out.write(String.format("Copied %d files (%.1f MB) in %.1f s, %.1f files/s, %.1f MB/s.",
+                    copier.getFiles(), copier.getBytes() / 1e6, seconds, copier.getFiles() / seconds,
+                    copier.getBytes() / 1e6 / seconds));
+            out.newLine();
+            if (!copier.getFailed().isEmpty()) {
+                out.write(copier.getFailed().size() + " failed:");
+                out.newLine();
+                for (String file : copier.getFailed()) {
+                    out.write("  " + file);
+                    out.newLine();
+                }
+            }
+            out.flush();
+        } catch (IOException ioe) {
+            return MyShell.error("Error with I/O stream.", out);
         }
 
         return ShellStatus.CONTINUE;
@@ -4,12 +4,25 @@ import hr.fer.zemris.crypto.CryptMode;
 import hr.fer.zemris.crypto.FileCrypter;
 import hr.fer.zemris.shell.MyShell;
 import hr.fer.zemris.shell.ShellStatus;
+import hr.fer.zemris.util.Arguments;
+import hr.fer.zemris.util.RateLimiter;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Helper class used by {@link EncryptShellCommand} and {@link DecryptShellCommand} classes.
@@ -26,18 +39,79 @@ public class CryptShellCommand implements ShellCommand {
     }
 
     /**
-     * Encrypts/decrypts the file provided as first argument and stores the result in the second argument.
+     * Encrypts/decrypts the file provided as first argument and stores the result in the second argument. Options are
+     * <ul>
+     * <li><b>--segmented</b> - encrypts the file in segmented format, files in segmented format are always decrypted
+     * as such</li>
+     * <li><b>--threads N</b> - number of workers used for segmented format (also turns on segmented format when
+     * encrypting), default is the number of processors</li>
+     * <li><b>--nio</b> - crypts the file in legacy format through memory-mapped channels instead of streams</li>
+     * <li><b>--offset N</b>, <b>--length M</b> - decrypts only M bytes of the original file starting at position N,
+     * file must be in segmented format</li>
+     * <li><b>-r</b> - first argument is a directory, every file in it is crypted into the same place in the
+     * destination directory, key and initialization vector are asked for only once</li>
+     * <li><b>--jobs N</b> - number of files crypted at the same time with <b>-r</b>, default is the number of
+     * processors</li>
+     * <li><b>--limit RATE</b> - limits reading to RATE bytes per second, i.e. <code>50M</code>, on top of the limits of
+     * the session (see {@link ThrottleShellCommand})</li>
+     * <li><b>--iops N</b> - limits reading to N reads per second</li>
+     * </ul>
      */
     @Override
-    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] args) {
+    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] rawArgs) {
+        Arguments arguments;
+        int threads;
+        long offset;
+        long length;
+        int jobs;
+        RateLimiter limiter;
+        try {
+            arguments = new Arguments(rawArgs, "threads", "offset", "length", "jobs", "limit", "iops");
+            threads = arguments.getInt("threads", Runtime.getRuntime().availableProcessors());
+            offset = arguments.getLong("offset", 0);
+            length = arguments.getLong("length", Long.MAX_VALUE);
+            jobs = arguments.getInt("jobs", Runtime.getRuntime().availableProcessors());
+            limiter = RateLimiter.forCommand(arguments.getSize("limit", 0), arguments.getLong("iops", 0));
+        } catch (IllegalArgumentException iae) {
+            return MyShell.error(iae.getMessage(), out);
+        }
+        String[] args = arguments.getPositional();
+
         if (args.length != 2) {
             return MyShell.error("Must provide two paths, source and destination.", out);
         }
+        if (threads < 1 || jobs < 1) {
+            return MyShell.error("Number of threads must be positive.", out);
+        }
 
-        if (!Files.exists(Paths.get(args[0])) || Files.isDirectory(Paths.get(args[0]))) {
+        boolean range = arguments.hasOption("offset") || arguments.hasOption("length");
+        if (range && mode == CryptMode.ENCRYPT) {
+            return MyShell.error("Options --offset and --length can only be used when decrypting.", out);
+        }
+        if (offset < 0 || length < 0) {
+            return MyShell.error("Offset and length can't be negative.", out);
+        }
+
+        boolean recursive = arguments.hasOption("r");
+        if (recursive) {
+            if (range) {
+                return MyShell.error("Directories can't be decrypted by range.", out);
+            }
+            if (!Files.isDirectory(Paths.get(args[0]))) {
+                return MyShell.error("There is no such directory as " + args[0], out);
+            }
+            Path src = Paths.get(args[0]).toAbsolutePath().normalize();
+            if (Paths.get(args[1]).toAbsolutePath().normalize().startsWith(src)) {
+                return MyShell.error("Destination can't be inside of the source directory.", out);
+            }
+        } else if (!Files.exists(Paths.get(args[0])) || Files.isDirectory(Paths.get(args[0]))) {
             return MyShell.error("There is no such file as " + args[0], out);
         }
 
+        if (range && !FileCrypter.isSegmented(args[0])) {
+            return MyShell.error("Only files in segmented format can be decrypted by range.", out);
+        }
+
         String encryptionKey;
         String initializationVector;
 
@@ -54,19 +128,202 @@ public class CryptShellCommand implements ShellCommand {
                 throw new IOException("Error while reading from input.");
             }
 
-            FileCrypter crypter = new FileCrypter(args[0], args[1], encryptionKey, initializationVector, mode);
-            if (crypter.cryptIt()) {
-                // these aren't errors, but works good.
-                return MyShell
-                        .error((mode == CryptMode.ENCRYPT ? "En" : "De") + "crypting completed. Generated "
-                                + Paths.get(args[1]).getFileName() + " based on " + Paths.get(args[0]).getFileName()
-                                + ".", out);
-            } else {
-                return MyShell.error((mode == CryptMode.ENCRYPT ? "En" : "De") + "crypting failed.", out);
+            if (recursive) {
+                return cryptTree(Paths.get(args[0]), Paths.get(args[1]), encryptionKey, initializationVector,
+                        arguments, jobs, limiter, out);
             }
 
         } catch (IOException ioe) {
             return MyShell.error("Error with I/O stream.", out);
         }
+
+        try {
+            cryptFile(args[0], args[1], encryptionKey, initializationVector, arguments, threads, offset, length,
+                    limiter);
+        } catch (IOException ioe) {
+            return MyShell.error((mode == CryptMode.ENCRYPT ? "En" : "De") + "crypting failed: " + ioe.getMessage(),
+                    out);
+        }
+
+        // these aren't errors, but works good.
+        return MyShell.error((mode == CryptMode.ENCRYPT ? "En" : "De") + "crypting completed. Generated "
+                + Paths.get(args[1]).getFileName() + " based on " + Paths.get(args[0]).getFileName() + ".", out);
+    }
+
+    /**
+     * Encrypts/decrypts one file.
+     * 
+     * @param src path to the source file
+     * @param dest path to the destination file
+     * @param encryptionKey hex-encoded key
+     * @param initializationVector hex-encoded initialization vector
+     * @param arguments options provided by user
+     * @param threads number of workers used for segmented format
+     * @param offset start of the range to decrypt
+     * @param length length of the range to decrypt
+     * @param limiter limiter of the reading rate
+     * @throws IOException if crypting fails, with the cause of the failure
+     */
+    private void cryptFile(String src, String dest, String encryptionKey, String initializationVector,
+            Arguments arguments, int threads, long offset, long length, RateLimiter limiter) throws IOException {
+
+        boolean segmented = (mode == CryptMode.ENCRYPT
+                ? arguments.hasOption("segmented") || arguments.hasOption("threads")
+                : FileCrypter.isSegmented(src));
+
+        FileCrypter crypter = new FileCrypter(src, dest, encryptionKey, initializationVector, mode);
+        crypter.setRateLimiter(limiter);
+        if (arguments.hasOption("offset") || arguments.hasOption("length")) {
+            crypter.decryptRange(offset, length, threads);
+        } else if (segmented) {
+            crypter.cryptSegmented(threads);
+        } else if (arguments.hasOption("nio")) {
+            crypter.cryptNio();
+        } else {
+            crypter.cryptIt();
+        }
+    }
+
+    /**
+     * Encrypts/decrypts every file in the source directory tree into the same place in the destination tree. Files are
+     * crypted on a pool of given size, at the end the summary is written to the output stream.
+     * 
+     * @param src source directory
+     * @param dest destination directory
+     * @param encryptionKey hex-encoded key
+     * @param initializationVector hex-encoded initialization vector
+     * @param arguments options provided by user
+     * @param jobs number of files crypted at the same time
+     * @param limiter limiter of the reading rate, shared by all files
+     * @param out output stream
+     * @return <code>CONTINUE</code> because the shell doesn't need to terminate
+     */
+    private ShellStatus cryptTree(Path src, Path dest, String encryptionKey, String initializationVector,
+            Arguments arguments, int jobs, RateLimiter limiter, BufferedWriter out) {
+
+        // whole pool is already busy, so every segmented file gets one worker unless user wants more
+        int threads = arguments.getInt("threads", 1);
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(jobs * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        DirectoryCrypter crypter = new DirectoryCrypter(src, dest, encryptionKey, initializationVector, arguments,
+                threads, limiter, pool);
+
+        long start = System.nanoTime();
+        try {
+            Files.walkFileTree(src, crypter);
+        } catch (IOException ioe) {
+            crypter.failed.add(src + " (" + ioe.getMessage() + ")");
+        } finally {
+            pool.shutdown();
+        }
+
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                // waiting for the files that are still being crypted
+            }
+        } catch (InterruptedException ie) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+
+        try {
+            out.write(String.format("%scrypted %d files (%.1f MB) in %.1f s, %.1f files/s, %.1f MB/s.",
+                    (mode == CryptMode.ENCRYPT ? "En" : "De"), crypter.files.get(), crypter.bytes.get() / 1e6,
+                    seconds, crypter.files.get() / seconds, crypter.bytes.get() / 1e6 / seconds));
+            out.newLine();
+            if (!crypter.failed.isEmpty()) {
+                out.write(crypter.failed.size() + " failed:");
+                out.newLine();
+                for (String file : crypter.failed) {
+                    out.write("  " + file);
+                    out.newLine();
+                }
+            }
+            out.flush();
+        } catch (IOException ioe) {
+            return MyShell.error("Error with I/O stream.", out);
+        }
+
+        return ShellStatus.CONTINUE;
+    }
+
+    /**
+     * Used for walking through the source directory. Directories are created in the destination tree while walking,
+     * files are handed to the pool.
+     * 
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    private class DirectoryCrypter extends SimpleFileVisitor<Path> {
+
+        private final Path src;
+        private final Path dest;
+        private final String encryptionKey;
+        private final String initializationVector;
+        private final Arguments arguments;
+        private final int threads;
+        private final RateLimiter limiter;
+        private final ExecutorService pool;
+
+        /**
+         * Number of crypted files.
+         */
+        private final AtomicLong files = new AtomicLong();
+        /**
+         * Number of bytes in crypted files.
+         */
+        private final AtomicLong bytes = new AtomicLong();
+        /**
+         * Files that couldn't be crypted.
+         */
+        private final Queue<String> failed = new ConcurrentLinkedQueue<>();
+
+        public DirectoryCrypter(Path src, Path dest, String encryptionKey, String initializationVector,
+                Arguments arguments, int threads, RateLimiter limiter, ExecutorService pool) {
+            this.src = src;
+            this.dest = dest;
+            this.encryptionKey = encryptionKey;
+            this.initializationVector = initializationVector;
+            this.arguments = arguments;
+            this.threads = threads;
+            this.limiter = limiter;
+            this.pool = pool;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+            Files.createDirectories(dest.resolve(src.relativize(dir).toString()));
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+            Path target = dest.resolve(src.relativize(file).toString());
+            long size = attrs.size();
+
+            pool.execute(() -> {
+                try {
+                    cryptFile(file.toString(), target.toString(), encryptionKey, initializationVector, arguments,
+                            threads, 0, Long.MAX_VALUE, limiter);
+                } catch (IOException ioe) {
+                    failed.add(file + " (" + ioe.getMessage() + ")");
+                    return;
+                } catch (RuntimeException re) {
+                    failed.add(file + " (" + re.getMessage() + ")");
+                    return;
+                }
+                files.incrementAndGet();
+                bytes.addAndGet(size);
+            });
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+            failed.add(file + " (" + exc.getMessage() + ")");
+            return FileVisitResult.CONTINUE;
+        }
     }
 }
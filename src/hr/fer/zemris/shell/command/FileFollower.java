@@ -0,0 +1,232 @@
+package hr.fer.zemris.shell.command;
+
+import hr.fer.zemris.shell.ShellOutput;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+
+/**
+ * Writes a file to the output stream and keeps writing the bytes appended to it, like <code>tail -f</code>. Follower
+ * sleeps until the directory of the file reports a change through a {@link WatchService}, so it doesn't use any CPU
+ * while the file doesn't change. File that got shorter is written again from the start, and a file replaced by another
+ * one (i.e. a rotated log) is finished first and then the new file is written from the start.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class FileFollower implements Callable<Void> {
+
+    private static final int BUFFER_CAPACITY = 4096;
+
+    private final Path file;
+    private final BufferedWriter out;
+    /**
+     * Whether the bytes are transferred to the output without decoding.
+     */
+    private final boolean transfer;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_CAPACITY);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_CAPACITY);
+    private final WatchService watcher;
+
+    /**
+     * Currently followed file, or <code>null</code> if it was removed and nothing replaced it yet.
+     */
+    private FileChannel channel;
+    private Object fileKey;
+    /**
+     * Position up to which the file was written to the output.
+     */
+    private long position;
+
+    /**
+     * @param file file to follow
+     * @param charset charset of the file
+     * @param out output stream
+     * @param transfer <code>true</code> if the bytes should be transferred to the output without decoding, output must
+     *            be a {@link ShellOutput} then
+     * @throws IOException if the file can't be opened or its directory can't be watched
+     */
+    FileFollower(Path file, Charset charset, BufferedWriter out, boolean transfer) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.out = out;
+        this.transfer = transfer;
+        this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(
+                CodingErrorAction.REPLACE);
+
+        channel = FileChannel.open(this.file, StandardOpenOption.READ);
+        fileKey = Files.readAttributes(this.file, BasicFileAttributes.class).fileKey();
+        watcher = file.getFileSystem().newWatchService();
+        try {
+            this.file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException ioe) {
+            watcher.close();
+            channel.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Writes the file and then waits for changes of the file until stopped.
+     */
+    @Override
+    public Void call() throws IOException {
+        try {
+            write();
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || file.getFileName().equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+
+                if (changed) {
+                    update();
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // stopped
+            return null;
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Stops following the file, {@link #call()} returns soon after.
+     *
+     * @throws IOException if the watch service can't be closed
+     */
+    void stop() throws IOException {
+        watcher.close();
+    }
+
+    /**
+     * Checks what happened to the file and writes what's new.
+     *
+     * @throws IOException if reading or writing fails
+     */
+    private void update() throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException nsfe) {
+            // removed, the rest of the old file can still be written
+            attrs = null;
+        }
+
+        if (channel == null || (attrs != null && !Objects.equals(attrs.fileKey(), fileKey))) {
+            if (channel != null) {
+                write();
+                channel.close();
+                message("File " + file.getFileName() + " was replaced.");
+            }
+            open();
+        } else if (channel.size() < position) {
+            message("File " + file.getFileName() + " was truncated.");
+            position = 0;
+            decoder.reset();
+            bytes.clear();
+        }
+        write();
+    }
+
+    /**
+     * Opens the file at the path and starts from its beginning. If there is no file, nothing is opened.
+     *
+     * @throws IOException if opening fails
+     */
+    private void open() throws IOException {
+        channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException nsfe) {
+            return;
+        }
+        fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        position = 0;
+        decoder.reset();
+        bytes.clear();
+    }
+
+    /**
+     * Writes the bytes of the file from the last position up to its current end.
+     *
+     * @throws IOException if reading or writing fails
+     */
+    private void write() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        long size = channel.size();
+
+        if (transfer) {
+            while (position < size) {
+                long transferred = channel.transferTo(position, size - position, ((ShellOutput) out).getChannel());
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+            return;
+        }
+
+        while (position < size) {
+            int read = channel.read(bytes, position);
+            if (read <= 0) {
+                break;
+            }
+            position += read;
+            bytes.flip();
+            CoderResult result;
+            do {
+                // bytes of a character that isn't complete yet stay in the buffer
+                result = decoder.decode(bytes, chars, false);
+                chars.flip();
+                out.write(chars.array(), chars.position(), chars.remaining());
+                chars.clear();
+            } while (result.isOverflow());
+            bytes.compact();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes a message about the file on its own line.
+     *
+     * @param message message to write
+     * @throws IOException if writing fails
+     */
+    private void message(String message) throws IOException {
+        out.newLine();
+        out.write(message);
+        out.newLine();
+        out.flush();
+    }
+}
@@ -1,15 +1,40 @@
 package hr.fer.zemris.shell.command;
 
+import hr.fer.zemris.crypto.DigestCache;
 import hr.fer.zemris.crypto.ShaChecker;
+import hr.fer.zemris.crypto.TreeDigest;
 import hr.fer.zemris.shell.MyShell;
 import hr.fer.zemris.shell.ShellStatus;
+import hr.fer.zemris.util.Arguments;
+import hr.fer.zemris.util.RateLimiter;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Used in {@link MyShell} for checking the sha signature.
@@ -20,34 +45,172 @@ import java.nio.file.Paths;
 public class GetshaShellCommand implements ShellCommand {
 
     /**
-     * Compares sha signature of the provided file through arguments with signature from user input.
+     * Number of files being digested per thread at once, bounds the memory used for waiting results.
+     */
+    private static final int FILES_IN_FLIGHT_PER_THREAD = 4;
+
+    /**
+     * Calculates sha signatures of the files provided through arguments. Arguments can be files, directories (every
+     * file in the directory tree is digested) or glob patterns (i.e. <code>src/*.java</code>). If there is more than
+     * one file, files are digested on a pool of threads and printed one per line sorted by path. Options are
+     * <ul>
+     * <li><b>--threads N</b> - number of files (or leaves with <b>--tree</b>) digested at the same time, default is the
+     * number of processors (use 1 for spinning disks)</li>
+     * <li><b>--tree</b> - calculates the tree digest of one file, leaves of the file are digested in parallel (see
+     * {@link TreeDigest})</li>
+     * <li><b>--leaf N</b> - leaf size in bytes for <b>--tree</b>, from 512B to 16MB, default is 1MB</li>
+     * <li><b>--save FILE</b> - saves the leaf digests of <b>--tree</b> to the file</li>
+     * <li><b>--verify FILE</b> - compares the leaf digests of <b>--tree</b> with the ones saved in the file and lists
+     * the leaves that changed</li>
+     * <li><b>--nocache</b> - digests every file even if its digest is cached (see {@link DigestCache})</li>
+     * <li><b>--algorithms LIST</b> - comma separated digest algorithms, i.e. <code>sha-1,sha-256,crc32c</code>,
+     * default is SHA-1; every file is read once no matter how many algorithms there are, and with more than one
+     * algorithm every digest is printed as <code>ALGORITHM (file) = digest</code></li>
+     * <li><b>--fanout</b> - updates every digest of a file on its own thread</li>
+     * <li><b>--limit RATE</b> - limits reading to RATE bytes per second, i.e. <code>50M</code>, on top of the limits of
+     * the session (see {@link ThrottleShellCommand})</li>
+     * <li><b>--iops N</b> - limits reading to N reads per second</li>
+     * </ul>
+     * Digests of files that didn't change since they were last digested are taken from the digest cache.
      */
     @Override
-    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] args) {
+    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] rawArgs) {
+
+        Arguments arguments;
+        int threads;
+        int leafSize;
+        RateLimiter limiter;
+        try {
+            arguments = new Arguments(rawArgs, "threads", "leaf", "save", "verify", "algorithms", "limit", "iops");
+            threads = arguments.getInt("threads", Runtime.getRuntime().availableProcessors());
+            leafSize = arguments.getInt("leaf", ShaChecker.DEFAULT_LEAF_SIZE);
+            limiter = RateLimiter.forCommand(arguments.getSize("limit", 0), arguments.getLong("iops", 0));
+        } catch (IllegalArgumentException iae) {
+            return MyShell.error(iae.getMessage(), out);
+        }
+        String[] args = arguments.getPositional();
+        String[] algorithms = arguments.getOption("algorithms", "SHA-1").toUpperCase().split(",");
+        for (String algorithm : algorithms) {
+            if (!ShaChecker.isSupported(algorithm)) {
+                return MyShell.error("Digest algorithm " + algorithm + " isn't supported.", out);
+            }
+        }
+        boolean fanOut = arguments.hasOption("fanout");
 
-        if (args.length != 1) {
+        if (args.length == 0) {
             return MyShell.error("Must provide path of the file you want to check.", out);
         }
+        if (threads < 1) {
+            return MyShell.error("Number of threads must be positive.", out);
+        }
+
+        boolean tree = arguments.hasOption("tree") || arguments.hasOption("save") || arguments.hasOption("verify");
+        if (tree) {
+            if (args.length != 1 || !Files.isRegularFile(Paths.get(args[0]))) {
+                return MyShell.error("Tree digest can be calculated only for one file.", out);
+            }
+            if (leafSize < ShaChecker.MIN_LEAF_SIZE || leafSize > ShaChecker.MAX_LEAF_SIZE) {
+                return MyShell.error("Leaf size must be from " + ShaChecker.MIN_LEAF_SIZE + " to "
+                        + ShaChecker.MAX_LEAF_SIZE + " bytes.", out);
+            }
+            if (algorithms.length != 1) {
+                return MyShell.error("Tree digest is calculated with only one algorithm.", out);
+            }
+            return digestTree(Paths.get(args[0]), algorithms[0], leafSize, threads, arguments, limiter, out);
+        }
+
+        DigestCache cache = arguments.hasOption("nocache") ? null : DigestCache.session();
+        if (args.length == 1 && !isGlob(args[0]) && !Files.isDirectory(Paths.get(args[0]))) {
+            return saveCache(cache, digestFile(Paths.get(args[0]), algorithms, fanOut, cache, limiter, out), out);
+        }
 
-        Path filePath = Paths.get(args[0]);
+        Set<Path> files = new TreeSet<>();
+        try {
+            for (String arg : args) {
+                collectFiles(arg, files);
+            }
+        } catch (NoSuchFileException nsfe) {
+            return MyShell.error("File " + nsfe.getFile() + " doesn't exist.", out);
+        } catch (IOException ioe) {
+            return MyShell.error("Error while going through directory", out);
+        }
+
+        if (files.isEmpty()) {
+            return MyShell.error("No files match the provided paths.", out);
+        }
+
+        return saveCache(cache, digestFiles(files, Math.min(threads, files.size()), algorithms, fanOut, cache, limiter,
+                out), out);
+    }
+
+    /**
+     * Saves the digest cache after digesting. Failing to save the cache doesn't fail the command.
+     * 
+     * @param cache digest cache, or <code>null</code> if it isn't used
+     * @param status status of the command
+     * @param out output stream
+     * @return status of the command
+     */
+    private static ShellStatus saveCache(DigestCache cache, ShellStatus status, BufferedWriter out) {
+        if (cache != null) {
+            try {
+                cache.save();
+            } catch (IOException ioe) {
+                MyShell.error("Digest cache couldn't be saved: " + ioe.getMessage(), out);
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Calculates the digests of the file, through the cache if there is one.
+     * 
+     * @param check checker of the file
+     * @param fanOut <code>true</code> if the digests should be updated on separate threads
+     * @param cache digest cache, or <code>null</code> if it isn't used
+     * @param limiter limiter of the reading rate
+     * @return <code>true</code> if the digests were calculated, <code>false</code> if the file couldn't be read
+     */
+    private static boolean calculate(ShaChecker check, boolean fanOut, DigestCache cache, RateLimiter limiter) {
+        check.setRateLimiter(limiter);
+        return cache == null ? check.calculateDigest(fanOut) : check.calculateDigest(cache, fanOut);
+    }
+
+    /**
+     * Calculates the signature of one file and writes it to the output stream.
+     * 
+     * @param filePath path to the file
+     * @param algorithms digest algorithms
+     * @param fanOut <code>true</code> if the digests should be updated on separate threads
+     * @param cache digest cache, or <code>null</code> if it isn't used
+     * @param limiter limiter of the reading rate
+     * @param out output stream
+     * @return <code>CONTINUE</code> because the shell doesn't need to terminate
+     */
+    private static ShellStatus digestFile(Path filePath, String[] algorithms, boolean fanOut, DigestCache cache,
+            RateLimiter limiter, BufferedWriter out) {
 
         if (!Files.exists(filePath)) {
             return MyShell.error("File provided doesn't exist.", out);
         }
 
-        if (Files.isDirectory(filePath)) {
-            return MyShell.error("Don't know how to calculate signature of directory.", out);
+        ShaChecker check = new ShaChecker(filePath.toString(), algorithms);
+        if (!calculate(check, fanOut, cache, limiter)) {
+            return MyShell.error("Error while reading file " + filePath.getFileName(), out);
         }
 
-        ShaChecker check = new ShaChecker(args[0]);
-        check.calculateDigest();
-
         try {
             out.write("Digesting " + filePath.getFileName() + "...");
             out.newLine();
             out.flush();
 
-            out.write("Digesting completed. Sha signature of " + filePath.getFileName() + " is:\n" + check.getDigest());
+            if (algorithms.length == 1) {
+                out.write("Digesting completed. Sha signature of " + filePath.getFileName() + " is:\n"
+                        + check.getDigest());
+            } else {
+                out.write("Digesting completed. Signatures of " + filePath.getFileName() + " are:\n"
+                        + formatDigests(check.getDigests(), filePath));
+            }
             out.newLine();
             out.flush();
 
@@ -57,4 +220,231 @@ public class GetshaShellCommand implements ShellCommand {
 
         return ShellStatus.CONTINUE;
     }
+
+    /**
+     * Calculates the tree digest of the file, saves it or compares it with a saved one if the user wants to, and
+     * writes the results to the output stream.
+     * 
+     * @param filePath path to the file
+     * @param algorithm digest algorithm
+     * @param leafSize size of one leaf
+     * @param threads number of threads
+     * @param arguments options provided by user
+     * @param limiter limiter of the reading rate
+     * @param out output stream
+     * @return <code>CONTINUE</code> because the shell doesn't need to terminate
+     */
+    private static ShellStatus digestTree(Path filePath, String algorithm, int leafSize, int threads,
+            Arguments arguments, RateLimiter limiter, BufferedWriter out) {
+
+        ShaChecker check = new ShaChecker(filePath.toString(), algorithm);
+        check.setRateLimiter(limiter);
+        try {
+            if (!check.calculateTreeDigest(leafSize, threads)) {
+                return MyShell.error("Error while reading file " + filePath.getFileName(), out);
+            }
+        } catch (IllegalArgumentException iae) {
+            // file with too many leaves for the leaf size
+            return MyShell.error(iae.getMessage(), out);
+        }
+        TreeDigest tree = check.getTree();
+
+        try {
+            out.write("Tree digest of " + filePath.getFileName() + " (" + tree.getLeafCount() + " leaves of "
+                    + leafSize + " bytes) is:\n" + check.getDigest());
+            out.newLine();
+
+            if (arguments.hasOption("save")) {
+                tree.save(Paths.get(arguments.getOption("save", null)));
+                out.write("Leaf digests saved to " + arguments.getOption("save", null) + ".");
+                out.newLine();
+            }
+
+            if (arguments.hasOption("verify")) {
+                List<Integer> changed = tree.changedLeaves(TreeDigest.load(Paths.get(arguments.getOption("verify",
+                        null))));
+                if (changed.isEmpty()) {
+                    out.write("File matches the saved tree digest.");
+                } else {
+                    out.write(changed.size() + " leaves changed:");
+                    for (int leaf : changed) {
+                        out.newLine();
+                        out.write(String.format("  leaf %d (bytes %d-%d)", leaf, (long) leaf * leafSize,
+                                (leaf + 1L) * leafSize - 1));
+                    }
+                }
+                out.newLine();
+            }
+            out.flush();
+
+        } catch (IllegalArgumentException iae) {
+            return MyShell.error(iae.getMessage(), out);
+        } catch (IOException ioe) {
+            return MyShell.error("Error while reading or writing leaf digests: " + ioe.getMessage(), out);
+        }
+
+        return ShellStatus.CONTINUE;
+    }
+
+    /**
+     * Calculates signatures of the files on a pool of threads and writes them to the output stream in order of the
+     * files. Only a limited number of files is being digested at once, so results don't pile up while waiting for a
+     * slow file.
+     * 
+     * @param files files to digest, sorted
+     * @param threads number of threads
+     * @param algorithms digest algorithms
+     * @param fanOut <code>true</code> if the digests should be updated on separate threads
+     * @param cache digest cache, or <code>null</code> if it isn't used
+     * @param limiter limiter of the reading rate, shared by all files
+     * @param out output stream
+     * @return <code>CONTINUE</code> because the shell doesn't need to terminate
+     */
+    private static ShellStatus digestFiles(Set<Path> files, int threads, String[] algorithms, boolean fanOut,
+            DigestCache cache, RateLimiter limiter, BufferedWriter out) {
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Deque<Future<String>> digests = new ArrayDeque<>();
+        Deque<Path> paths = new ArrayDeque<>();
+        Iterator<Path> next = files.iterator();
+        int failed = 0;
+
+        try {
+            while (next.hasNext() || !digests.isEmpty()) {
+                while (next.hasNext() && digests.size() < threads * FILES_IN_FLIGHT_PER_THREAD) {
+                    Path file = next.next();
+                    paths.addLast(file);
+                    digests.addLast(pool.submit(() -> {
+                        ShaChecker check = new ShaChecker(file.toString(), algorithms);
+                        if (!calculate(check, fanOut, cache, limiter)) {
+                            return null;
+                        }
+                        return algorithms.length == 1 ? check.getDigest() + "  " + file : formatDigests(check
+                                .getDigests(), file);
+                    }));
+                }
+
+                Path file = paths.removeFirst();
+                String digest = digests.removeFirst().get();
+                if (digest == null) {
+                    failed++;
+                    out.write("Error while reading file " + file);
+                } else {
+                    out.write(digest);
+                }
+                out.newLine();
+                if (digests.isEmpty()) {
+                    out.flush();
+                }
+            }
+
+            out.write("Digested " + (files.size() - failed) + " files" + (failed == 0 ? "." : ", " + failed
+                    + " failed."));
+            out.newLine();
+            out.flush();
+
+        } catch (IOException ioe) {
+            return MyShell.error("Error with I/O buffers.", out);
+        } catch (ExecutionException ee) {
+            return MyShell.error("Error while digesting files.", out);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return MyShell.error("Digesting interrupted.", out);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return ShellStatus.CONTINUE;
+    }
+
+    /**
+     * Formats the digests of the file, one per line.
+     * 
+     * @param digests digests mapped by algorithm
+     * @param file digested file
+     * @return formatted digests
+     */
+    private static String formatDigests(Map<String, String> digests, Path file) {
+        StringJoiner lines = new StringJoiner("\n");
+        for (Map.Entry<String, String> digest : digests.entrySet()) {
+            lines.add(digest.getKey() + " (" + file + ") = " + digest.getValue());
+        }
+        return lines.toString();
+    }
+
+    /**
+     * Adds the files the argument refers to. Directories are added with all of the files in them, glob patterns with
+     * all of the files they match.
+     * 
+     * @param arg file, directory or glob pattern
+     * @param files set the files are added to
+     * @throws IOException if a file doesn't exist or directory can't be read
+     */
+    private static void collectFiles(String arg, Set<Path> files) throws IOException {
+
+        if (!isGlob(arg)) {
+            Path path = Paths.get(arg);
+            if (!Files.exists(path)) {
+                throw new NoSuchFileException(arg);
+            }
+            walk(path, Integer.MAX_VALUE, null, files);
+            return;
+        }
+
+        // directory before the first pattern element is where the search starts
+        int firstGlob = 0;
+        while (!isGlob(arg.substring(0, firstGlob + 1))) {
+            firstGlob++;
+        }
+        int baseEnd = Math.max(arg.lastIndexOf('/', firstGlob), arg.lastIndexOf(File.separatorChar, firstGlob));
+        Path base = (baseEnd < 0 ? Paths.get("") : Paths.get(arg.substring(0, baseEnd + 1)));
+
+        int depth = Integer.MAX_VALUE;
+        if (!arg.contains("**")) {
+            depth = Paths.get(arg.substring(baseEnd + 1)).getNameCount();
+        }
+
+        if (Files.isDirectory(base)) {
+            walk(base, depth, FileSystems.getDefault().getPathMatcher("glob:" + arg), files);
+        }
+    }
+
+    /**
+     * Adds regular files from the file tree.
+     * 
+     * @param start where to start
+     * @param depth how deep to go
+     * @param matcher files must match it, or <code>null</code> if every file is wanted
+     * @param files set the files are added to
+     * @throws IOException if directory can't be read
+     */
+    private static void walk(Path start, int depth, PathMatcher matcher, Set<Path> files) throws IOException {
+        Files.walkFileTree(start, EnumSet.noneOf(FileVisitOption.class), depth, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && (matcher == null || matcher.matches(file))) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @param arg argument
+     * @return <code>true</code> if the argument is a glob pattern, <code>false</code> otherwise
+     */
+    private static boolean isGlob(String arg) {
+        for (char c : arg.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return true;
+            }
+        }
+        return false;
+    }
 }
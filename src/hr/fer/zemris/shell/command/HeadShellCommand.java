@@ -0,0 +1,30 @@
+package hr.fer.zemris.shell.command;
+
+import hr.fer.zemris.shell.MyShell;
+import hr.fer.zemris.shell.ShellStatus;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+
+/**
+ * This class is used to print out the first lines of a file, using a specified charset (if none is provided, default
+ * is used) in {@link MyShell} class.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class HeadShellCommand implements ShellCommand {
+
+    /**
+     * Prints the first lines of the file to the output stream. First argument must be the file. Second argument is
+     * used charset. If charset isn't provided, the default one is used. File is read only until the lines are found.
+     * Options are
+     * <ul>
+     * <li><b>-n N</b> - number of lines, default is 10</li>
+     * </ul>
+     */
+    @Override
+    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] args) {
+        return new LinesShellCommand(false).executeCommand(in, out, args);
+    }
+}
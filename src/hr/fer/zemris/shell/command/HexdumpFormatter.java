@@ -0,0 +1,114 @@
+package hr.fer.zemris.shell.command;
+
+/**
+ * Formats bytes into hex dump rows used by {@link HexdumpShellCommand}. Every row starts with the offset of its first
+ * byte, followed by the bytes in hex and the bytes as characters. Rows are written into a character array with lookup
+ * tables, so formatting doesn't create any objects.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class HexdumpFormatter {
+
+    /**
+     * How many bytes per one row.
+     */
+    static final int BYTES_IN_ROW = 16;
+    /**
+     * Minimal number of hex digits of the offset.
+     */
+    private static final int OFFSET_DIGITS = 8;
+
+    private static final char[] OFFSET_HEX = "0123456789abcdef".toCharArray();
+    private static final char[] HIGH = new char[256];
+    private static final char[] LOW = new char[256];
+    private static final char[] LETTERS = new char[256];
+    private static final char[] LINE_SEPARATOR = System.lineSeparator().toCharArray();
+
+    static {
+        char[] hex = "0123456789ABCDEF".toCharArray();
+        for (int value = 0; value < 256; value++) {
+            HIGH[value] = hex[value >>> 4];
+            LOW[value] = hex[value & 0xf];
+            // bytes that aren't in [32,127] interval are represented as a '.'
+            LETTERS[value] = (value < 32 || value > 127) ? '.' : (char) value;
+        }
+    }
+
+    private HexdumpFormatter() {
+    }
+
+    /**
+     * Returns the maximal number of characters the rows of given bytes take.
+     *
+     * @param bytes number of bytes
+     * @return number of characters
+     */
+    static int maxChars(int bytes) {
+        int rows = (bytes + BYTES_IN_ROW - 1) / BYTES_IN_ROW;
+        return rows * (2 * Long.BYTES + 2 + 4 * BYTES_IN_ROW + 2 + LINE_SEPARATOR.length);
+    }
+
+    /**
+     * Formats the bytes into rows. Every row but the last one has {@link #BYTES_IN_ROW} bytes.
+     *
+     * @param bytes bytes to format
+     * @param from index of the first byte
+     * @param len number of bytes
+     * @param offset offset of the first byte in the file
+     * @param chars where to write the rows, must have room for {@link #maxChars(int)} characters
+     * @param start where to start writing
+     * @return index after the last written character
+     */
+    static int format(byte[] bytes, int from, int len, long offset, char[] chars, int start) {
+        int pos = start;
+        for (int row = 0; row < len; row += BYTES_IN_ROW) {
+            pos = formatRow(bytes, from + row, Math.min(BYTES_IN_ROW, len - row), offset + row, chars, pos);
+        }
+        return pos;
+    }
+
+    /**
+     * Formats one row, i.e. <code>00000010: 41 42 43 44 45 46 47 48|49 4A 4B 4C 4D 4E 4F 50 | ABCDEFGHIJKLMNOP</code>.
+     *
+     * @param bytes bytes to format
+     * @param from index of the first byte
+     * @param len number of bytes in the row
+     * @param offset offset of the first byte in the file
+     * @param chars where to write the row
+     * @param start where to start writing
+     * @return index after the last written character
+     */
+    private static int formatRow(byte[] bytes, int from, int len, long offset, char[] chars, int start) {
+        int pos = start;
+
+        int digits = Math.max(OFFSET_DIGITS, (Long.SIZE - Long.numberOfLeadingZeros(offset) + 3) / 4);
+        for (int shift = 4 * (digits - 1); shift >= 0; shift -= 4) {
+            chars[pos++] = OFFSET_HEX[(int) (offset >>> shift) & 0xf];
+        }
+        chars[pos++] = ':';
+        chars[pos++] = ' ';
+
+        for (int i = 0; i < BYTES_IN_ROW; i++) {
+            if (i < len) {
+                int value = bytes[from + i] & 0xff;
+                chars[pos++] = HIGH[value];
+                chars[pos++] = LOW[value];
+            } else {
+                chars[pos++] = ' ';
+            }
+            chars[pos++] = (i == BYTES_IN_ROW / 2 - 1) ? '|' : ' ';
+        }
+        chars[pos++] = '|';
+        chars[pos++] = ' ';
+
+        for (int i = 0; i < len; i++) {
+            chars[pos++] = LETTERS[bytes[from + i] & 0xff];
+        }
+
+        for (char c : LINE_SEPARATOR) {
+            chars[pos++] = c;
+        }
+        return pos;
+    }
+}
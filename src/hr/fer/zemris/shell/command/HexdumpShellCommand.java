@@ -1,18 +1,24 @@
 package hr.fer.zemris.shell.command;
 
 import hr.fer.zemris.shell.MyShell;
-
 import hr.fer.zemris.shell.ShellStatus;
+import hr.fer.zemris.util.Arguments;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Used in {@link MyShell} class to create a hex dump a file and to write it to the output stream.
@@ -23,18 +29,58 @@ import java.nio.file.Paths;
 public class HexdumpShellCommand implements ShellCommand {
 
     /**
-     * How many bytes per one row.
+     * How many bytes are read and formatted at once, a multiple of the row size.
+     */
+    private static final int BLOCK_SIZE = 4096 * HexdumpFormatter.BYTES_IN_ROW;
+
+    /**
+     * Number of bytes shown with <b>--tail</b> if length isn't provided.
+     */
+    private static final int DEFAULT_TAIL_LENGTH = 4096;
+    /**
+     * Number of chunks per thread that are being rendered or waiting to be written at once, bounds the memory used.
      */
-    private static final int BYTES_IN_ROW = 16;
+    private static final int CHUNKS_IN_FLIGHT_PER_THREAD = 2;
 
     /**
-     * Creates a hex-dump of the file provided in arguments.
+     * Creates a hex-dump of the file provided in arguments. File is read in large blocks and every block is formatted
+     * into a reused character buffer by {@link HexdumpFormatter} and written out at once. Only the part of the file
+     * being dumped is read, so it takes the same time for any file size. Options are
+     * <ul>
+     * <li><b>--skip N</b> - starts the dump at byte N of the file</li>
+     * <li><b>--length M</b> - dumps at most M bytes</li>
+     * <li><b>--tail</b> - dumps the last M bytes of the file, 4KB if length isn't provided</li>
+     * <li><b>--threads N</b> - renders chunks of the file on N threads, chunks are still written in order</li>
+     * </ul>
      */
     @Override
-    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] args) {
+    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] rawArgs) {
+        Arguments arguments;
+        long skip;
+        long length;
+        int threads;
+        try {
+            arguments = new Arguments(rawArgs, "skip", "length", "threads");
+            threads = arguments.getInt("threads", 1);
+            skip = arguments.getLong("skip", 0);
+            length = arguments.getLong("length", arguments.hasOption("tail") ? DEFAULT_TAIL_LENGTH : Long.MAX_VALUE);
+        } catch (IllegalArgumentException iae) {
+            return MyShell.error(iae.getMessage(), out);
+        }
+        String[] args = arguments.getPositional();
+
         if (args.length != 1) {
             return MyShell.error("Must proide a path to the file", out);
         }
+        if (skip < 0 || length < 0) {
+            return MyShell.error("Skip and length can't be negative.", out);
+        }
+        if (threads < 1) {
+            return MyShell.error("Number of threads must be positive.", out);
+        }
+        if (arguments.hasOption("tail") && arguments.hasOption("skip")) {
+            return MyShell.error("Options --tail and --skip can't be used together.", out);
+        }
 
         Path src = Paths.get(args[0]);
 
@@ -42,92 +88,131 @@ public class HexdumpShellCommand implements ShellCommand {
             return MyShell.error("Provided path is not valid", out);
         }
 
-        try {
-            InputStream is = new BufferedInputStream(new FileInputStream(src.toFile()));
-
-            byte[] buff = new byte[BYTES_IN_ROW];
-            StringBuilder s = new StringBuilder();
-            int numOfPrints = 0;
-
-            while (true) {
-                int numOfBytes = is.read(buff);
-                if (numOfBytes < 1) {
-                    break;
-                }
-                s.append(String.format("%08x: ", numOfPrints));
-                s.append(byteToHex(buff, numOfBytes));
-                s.append(makeLetters(buff, numOfBytes));
-
-                numOfPrints += BYTES_IN_ROW;
-
-                out.write(s.toString());
-                out.newLine();
-                out.flush();
-                s.setLength(0);
-
+        try (FileChannel channel = FileChannel.open(src, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (arguments.hasOption("tail")) {
+                skip = Math.max(0, size - length);
+            }
+            if (skip > size) {
+                return MyShell.error("File is only " + size + " bytes long.", out);
             }
+            long end = skip + Math.min(length, size - skip);
 
-            is.close();
+            if (threads == 1 || end - skip <= BLOCK_SIZE) {
+                dump(channel, skip, end, out);
+            } else {
+                dumpParallel(channel, skip, end, threads, out);
+            }
 
-        } catch (IOException ioe) {
+        } catch (IOException | ExecutionException e) {
             return MyShell.error("Error with file/buffer.", out);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return MyShell.error("Hexdump interrupted.", out);
         }
 
         return ShellStatus.CONTINUE;
     }
 
     /**
-     * Returns a string representation of the byte array. Bytes that aren't in <code>[32,127]</code> interval are
-     * represented as a <code>'.'<code>.
+     * Dumps the part of the file to the output stream.
      * 
-     * @param bytes bytes to represent
-     * @param len how many of them are there
-     * @return string representation
+     * @param channel channel of the file
+     * @param start offset of the first byte
+     * @param end offset after the last byte
+     * @param out output stream
+     * @throws IOException if reading or writing fails
      */
-    private static String makeLetters(byte[] bytes, int len) {
-
-        StringBuilder buff = new StringBuilder();
+    private static void dump(FileChannel channel, long start, long end, BufferedWriter out) throws IOException {
+        Chunk chunk = new Chunk();
 
-        for (int i = 0; i < len; i++) {
-            int value = bytes[i] & 0xff;
-            if (value < 32 || value > 127) {
-                buff.append('.');
-            } else {
-                buff.append((char) value);
+        for (long offset = start; offset < end; offset += BLOCK_SIZE) {
+            chunk.render(channel, offset, (int) Math.min(BLOCK_SIZE, end - offset));
+            if (chunk.length == 0) {
+                break;
             }
+            out.write(chunk.rows, 0, chunk.length);
+            out.flush();
         }
-
-        return buff.toString();
     }
 
     /**
-     * Returns string representation of a byte array.
+     * Dumps the part of the file to the output stream, rendering chunks of it on a pool of threads. Chunks are written
+     * in order of their offsets, a chunk that is rendered before the ones in front of it waits in the queue. Only a
+     * limited number of chunks is in the queue at once and their buffers are reused, so memory used doesn't depend on
+     * the size of the file.
      * 
-     * @param bytes bytes to represent
-     * @param len how many bytes are there
-     * @return string representation
+     * @param channel channel of the file
+     * @param start offset of the first byte
+     * @param end offset after the last byte
+     * @param threads number of threads
+     * @param out output stream
+     * @throws IOException if reading or writing fails
+     * @throws ExecutionException if rendering a chunk fails
+     * @throws InterruptedException if interrupted while waiting for a chunk
      */
-    private static String byteToHex(byte[] bytes, int len) {
-        StringBuilder buff = new StringBuilder();
-        for (int i = 0; i < bytes.length; i++) {
+    private static void dumpParallel(FileChannel channel, long start, long end, int threads, BufferedWriter out)
+            throws IOException, ExecutionException, InterruptedException {
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Deque<Future<Chunk>> rendered = new ArrayDeque<>();
+        Deque<Chunk> free = new ArrayDeque<>();
+        for (int i = 0; i < threads * CHUNKS_IN_FLIGHT_PER_THREAD; i++) {
+            free.add(new Chunk());
+        }
 
-            if (i < len) {
-                if ((bytes[i] & 0xff) < 0x10) {
-                    buff.append('0');
+        try {
+            long next = start;
+            while (next < end || !rendered.isEmpty()) {
+                while (next < end && !free.isEmpty()) {
+                    Chunk chunk = free.removeFirst();
+                    long offset = next;
+                    int len = (int) Math.min(BLOCK_SIZE, end - offset);
+                    rendered.addLast(pool.submit(() -> chunk.render(channel, offset, len)));
+                    next += len;
                 }
-                buff.append(Integer.toHexString(bytes[i] & 0xff).toUpperCase());
-            } else {
-                buff.append(" ");
+
+                Chunk chunk = rendered.removeFirst().get();
+                out.write(chunk.rows, 0, chunk.length);
+                out.flush();
+                free.addLast(chunk);
             }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-            if (i == bytes.length / 2 - 1) {
-                buff.append("|");
-            } else {
-                buff.append(" ");
+    /**
+     * Buffers of one chunk of the file, bytes read from the file and rows rendered from them.
+     */
+    private static class Chunk {
+
+        private final byte[] bytes = new byte[BLOCK_SIZE];
+        private final char[] rows = new char[HexdumpFormatter.maxChars(BLOCK_SIZE)];
+        /**
+         * Number of rendered characters.
+         */
+        private int length;
+
+        /**
+         * Reads the chunk of the file and renders it. Chunk ends early if the file got shorter while being dumped.
+         * 
+         * @param channel channel of the file
+         * @param offset offset of the chunk
+         * @param len length of the chunk
+         * @return this chunk
+         * @throws IOException if reading fails
+         */
+        public Chunk render(FileChannel channel, long offset, int len) throws IOException {
+            ByteBuffer block = ByteBuffer.wrap(bytes, 0, len);
+            while (block.hasRemaining()) {
+                if (channel.read(block, offset + block.position()) < 0) {
+                    break;
+                }
             }
 
+            length = HexdumpFormatter.format(bytes, 0, block.position(), offset, rows, 0);
+            return this;
         }
-        return buff.append("| ").toString();
     }
-
 }
@@ -0,0 +1,251 @@
+package hr.fer.zemris.shell.command;
+
+import hr.fer.zemris.shell.ShellOutput;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Finds and writes the first or the last lines of a file for {@link HeadShellCommand} and {@link TailShellCommand}.
+ * If the charset of the file encodes a line feed as a single <code>0x0A</code> byte (every charset that extends ASCII,
+ * i.e. UTF-8), lines are found by looking for that byte without decoding the file: the first lines by reading from
+ * the start, the last lines by reading blocks backwards from the end. Only the bytes of the wanted lines are decoded,
+ * so the time taken depends on the number of lines and not on the size of the file. Files in other charsets (i.e.
+ * UTF-16) are decoded from the start.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class LineScanner {
+
+    /**
+     * Size of the blocks the file is scanned in.
+     */
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final byte LINE_FEED = '\n';
+
+    private LineScanner() {
+    }
+
+    /**
+     * Writes the first lines of the file.
+     *
+     * @param channel channel of the file
+     * @param charset charset of the file
+     * @param lines number of lines
+     * @param out output stream
+     * @throws IOException if reading or writing fails
+     */
+    static void head(FileChannel channel, Charset charset, long lines, BufferedWriter out) throws IOException {
+        if (!isLineFeedByte(charset)) {
+            decodeLines(channel, charset, lines, false, out);
+            return;
+        }
+
+        long size = channel.size();
+        long end = 0;
+        long found = 0;
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+        scan: for (long position = 0; position < size && found < lines;) {
+            int read = readBlock(channel, block, position, size);
+            byte[] bytes = block.array();
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] == LINE_FEED && ++found == lines) {
+                    end = position + i + 1;
+                    break scan;
+                }
+            }
+            position += read;
+            end = position;
+        }
+
+        write(channel, 0, end, charset, out);
+    }
+
+    /**
+     * Writes the last lines of the file. Line feed at the end of the file doesn't start a new line.
+     *
+     * @param channel channel of the file
+     * @param charset charset of the file
+     * @param lines number of lines
+     * @param out output stream
+     * @throws IOException if reading or writing fails
+     */
+    static void tail(FileChannel channel, Charset charset, long lines, BufferedWriter out) throws IOException {
+        if (!isLineFeedByte(charset)) {
+            decodeLines(channel, charset, lines, true, out);
+            return;
+        }
+
+        long size = channel.size();
+        long start = 0;
+        long found = 0;
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+        scan: for (long end = size; end > 0 && lines > 0;) {
+            long position = Math.max(0, end - BLOCK_SIZE);
+            int read = readBlock(channel, block, position, end);
+            byte[] bytes = block.array();
+            for (int i = read - 1; i >= 0; i--) {
+                // line feed that ends the file doesn't count
+                if (bytes[i] == LINE_FEED && position + i != size - 1 && ++found == lines) {
+                    start = position + i + 1;
+                    break scan;
+                }
+            }
+            end = position;
+        }
+
+        write(channel, lines > 0 ? start : size, size, charset, out);
+    }
+
+    /**
+     * Checks if the charset encodes a line feed as a single <code>0x0A</code> byte. Such charsets extend ASCII, so
+     * that byte doesn't appear inside of any other character.
+     *
+     * @param charset charset to check
+     * @return <code>true</code> if it does, <code>false</code> otherwise
+     */
+    private static boolean isLineFeedByte(Charset charset) {
+        return charset.canEncode() && Arrays.equals("\n".getBytes(charset), new byte[] { LINE_FEED })
+                && Arrays.equals("a\n".getBytes(charset), new byte[] { 'a', LINE_FEED });
+    }
+
+    /**
+     * Reads the block of the file that ends at given position, or the end of the file.
+     *
+     * @param channel channel of the file
+     * @param block buffer to read into
+     * @param position position of the block
+     * @param end position after the block
+     * @return number of bytes read
+     * @throws IOException if reading fails
+     */
+    private static int readBlock(FileChannel channel, ByteBuffer block, long position, long end)
+            throws IOException {
+        block.clear().limit((int) Math.min(BLOCK_SIZE, end - position));
+        while (block.hasRemaining()) {
+            if (channel.read(block, position + block.position()) < 0) {
+                break; // file got shorter
+            }
+        }
+        return block.position();
+    }
+
+    /**
+     * Writes the part of the file to the output stream, followed by a new line if it doesn't end with one. Bytes are
+     * transferred without decoding if the charset is the encoding of the shell output.
+     *
+     * @param channel channel of the file
+     * @param start position of the first byte
+     * @param end position after the last byte
+     * @param charset charset of the file
+     * @param out output stream
+     * @throws IOException if reading or writing fails
+     */
+    private static void write(FileChannel channel, long start, long end, Charset charset, BufferedWriter out)
+            throws IOException {
+
+        if (out instanceof ShellOutput && charset.equals(((ShellOutput) out).getCharset())) {
+            for (long position = start; position < end;) {
+                long transferred = channel.transferTo(position, end - position, ((ShellOutput) out).getChannel());
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        } else {
+            CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            ByteBuffer bytes = ByteBuffer.allocate(BLOCK_SIZE);
+            CharBuffer chars = CharBuffer.allocate(BLOCK_SIZE);
+
+            boolean ended = false;
+            for (long position = start; !ended;) {
+                int read = position < end ? readBlock(channel, bytes, position, end) : 0;
+                position += read;
+                ended = read == 0 || position >= end;
+                bytes.flip();
+                decoder.decode(bytes, chars, ended);
+                chars.flip();
+                out.write(chars.array(), chars.position(), chars.remaining());
+                chars.clear();
+                // bytes of a character cut by the end of the block are read again with the next block
+                position -= bytes.remaining();
+            }
+            decoder.flush(chars);
+            chars.flip();
+            out.write(chars.array(), chars.position(), chars.remaining());
+        }
+
+        if (end > start && endsWithLineFeed(channel, end)) {
+            out.flush();
+        } else {
+            out.newLine();
+            out.flush();
+        }
+    }
+
+    /**
+     * @param channel channel of the file
+     * @param end position after the last byte
+     * @return <code>true</code> if the byte before the position is a line feed, <code>false</code> otherwise
+     * @throws IOException if reading fails
+     */
+    private static boolean endsWithLineFeed(FileChannel channel, long end) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        return channel.read(last, end - 1) == 1 && last.get(0) == LINE_FEED;
+    }
+
+    /**
+     * Writes the first or the last lines of the file by decoding it from the start.
+     *
+     * @param channel channel of the file
+     * @param charset charset of the file
+     * @param lines number of lines
+     * @param last <code>true</code> for the last lines, <code>false</code> for the first ones
+     * @param out output stream
+     * @throws IOException if reading or writing fails
+     */
+    private static void decodeLines(FileChannel channel, Charset charset, long lines, boolean last,
+            BufferedWriter out) throws IOException {
+
+        BufferedReader reader = new BufferedReader(Channels.newReader(channel.position(0), charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE), -1));
+        Deque<String> kept = new ArrayDeque<>();
+
+        for (long read = 0; last || read < lines; read++) {
+            String line = reader.readLine();
+            if (line == null) {
+                break;
+            }
+            if (!last) {
+                out.write(line);
+                out.newLine();
+                continue;
+            }
+            kept.addLast(line);
+            if (kept.size() > lines) {
+                kept.removeFirst();
+            }
+        }
+
+        for (String line : kept) {
+            out.write(line);
+            out.newLine();
+        }
+        out.flush();
+    }
+}
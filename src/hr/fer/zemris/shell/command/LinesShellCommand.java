@@ -0,0 +1,94 @@
+package hr.fer.zemris.shell.command;
+
+import hr.fer.zemris.shell.MyShell;
+import hr.fer.zemris.shell.ShellStatus;
+import hr.fer.zemris.util.Arguments;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Helper class used by {@link HeadShellCommand} and {@link TailShellCommand} classes, prints out the first or the last
+ * lines of a file (see {@link LineScanner}).
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+class LinesShellCommand implements ShellCommand {
+
+    /**
+     * Number of lines printed if it isn't provided.
+     */
+    private static final long DEFAULT_LINES = 10;
+
+    /**
+     * <code>true</code> if the last lines are printed, <code>false</code> if the first ones are.
+     */
+    private final boolean last;
+
+    /**
+     * @param last <code>true</code> if the last lines should be printed, <code>false</code> if the first ones
+     */
+    LinesShellCommand(boolean last) {
+        this.last = last;
+    }
+
+    /**
+     * Prints the lines of the file to the output stream. First argument must be the file. Second argument is used
+     * charset. If charset isn't provided, the default one is used. Options are
+     * <ul>
+     * <li><b>-n N</b> - number of lines, default is 10</li>
+     * </ul>
+     */
+    @Override
+    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] rawArgs) {
+
+        Arguments arguments;
+        long lines;
+        Charset charset = Charset.defaultCharset();
+        try {
+            arguments = new Arguments(rawArgs, "n");
+            lines = arguments.getLong("n", DEFAULT_LINES);
+        } catch (IllegalArgumentException iae) {
+            return MyShell.error(iae.getMessage(), out);
+        }
+        String[] args = arguments.getPositional();
+
+        if (args.length != 1 && args.length != 2) {
+            return MyShell.error("Must provide unleast one argument.", out);
+        }
+        if (lines < 0) {
+            return MyShell.error("Number of lines can't be negative.", out);
+        }
+
+        // setting charset
+        if (args.length == 2) {
+            try {
+                charset = CatShellCommand.charsetFor(args[1]);
+            } catch (IllegalArgumentException iae) {
+                return MyShell.error(iae.getMessage(), out);
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(args[0]), StandardOpenOption.READ)) {
+            if (last) {
+                LineScanner.tail(channel, charset, lines, out);
+            } else {
+                LineScanner.head(channel, charset, lines, out);
+            }
+
+        } catch (NoSuchFileException nsfe) {
+            return MyShell.error("File " + args[0] + " doesn't exist.", out);
+        } catch (IOException ioe) {
+            return MyShell.error("Error occured while reading file.", out);
+        }
+
+        return ShellStatus.CONTINUE;
+    }
+}
@@ -2,20 +2,30 @@ package hr.fer.zemris.shell.command;
 
 import hr.fer.zemris.shell.MyShell;
 import hr.fer.zemris.shell.ShellStatus;
+import hr.fer.zemris.util.Arguments;
+import hr.fer.zemris.util.DirectorySizes;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 /**
  * This class is used in the {@link MyShell} class to list out the files contained in the directory.
@@ -26,46 +36,191 @@ import java.util.Date;
  * <li>time of creation</li>
  * <li>file/directory name</li>
  * </ul>
+ * Directory is read as a stream, entry by entry, and attributes of every entry are read at once, so listing a huge
+ * directory starts right away and doesn't need memory for all of its entries. On file systems with POSIX permissions
+ * readable/writeable/executable are the permissions of the owner of the file.
+ * <p>
+ * Sizes of directories are calculated in parallel and cached for the session (see {@link DirectorySizes}), so listing
+ * the same directory again is fast. Option <b>--nosize</b> skips them, the size of the directory entry itself is listed
+ * then. Listing can be sorted and cut to the first few entries as well (see
+ * {@link #executeCommand(BufferedReader, BufferedWriter, String[])}).
  * 
  * @author Filip Hrenić
  * @version 1.0
  */
 public class LsShellCommand implements ShellCommand {
 
+    /**
+     * Number of entries written before the output is flushed.
+     */
+    private static final int BATCH_SIZE = 256;
+    /**
+     * Format of the creation time. It's thread-safe, so all listings share it.
+     */
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * Lists the directory given as the argument. Options are
+     * <ul>
+     * <li><b>--nosize</b> - doesn't calculate the sizes of the directories</li>
+     * <li><b>--sort ORDER</b> - lists the entries sorted by <code>size</code> (largest first), <code>mtime</code>
+     * (last modified first) or <code>name</code></li>
+     * <li><b>--top K</b> - lists only the first K entries in that order, by size if the order isn't given</li>
+     * </ul>
+     * Sorted listing keeps only the best K entries while the directory is read, in a heap whose root is the entry that
+     * goes first when a better one comes, so it still reads the directory once and needs memory only for K entries.
+     */
     @Override
-    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] args) {
+    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] rawArgs) {
+        Arguments arguments;
+        Order order = null;
+        int top = Integer.MAX_VALUE;
+        try {
+            arguments = new Arguments(rawArgs, "sort", "top");
+            if (arguments.hasOption("sort") || arguments.hasOption("top")) {
+                order = Order.of(arguments.getOption("sort", "size"));
+                top = arguments.getInt("top", top);
+                if (top < 1) {
+                    return MyShell.error("Option --top must be positive.", out);
+                }
+            }
+        } catch (IllegalArgumentException iae) {
+            return MyShell.error(iae.getMessage(), out);
+        }
 
+        String[] args = arguments.getPositional();
         if (args.length != 1) {
             return MyShell.error("Must provide directory path.", out);
         }
+        boolean sizes = !arguments.hasOption("nosize");
 
-        File dir = Paths.get(args[0]).toFile();
-        if (!dir.isDirectory()) {
+        Path dir = Paths.get(args[0]);
+        if (!Files.isDirectory(dir)) {
             return MyShell.error("Provided file must be a direcltory.", out);
         }
+        boolean posix = Files.getFileAttributeView(dir, PosixFileAttributeView.class) != null;
+
+        // root of the heap is the worst entry kept so far
+        PriorityQueue<Listed> ranked = order == null ? null : new PriorityQueue<>(Math.min(top, BATCH_SIZE),
+                order.comparator.reversed());
+        StringBuilder line = new StringBuilder();
+        int written = 0;
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = readAttributes(entry, posix);
+                } catch (IOException ioe) {
+                    MyShell.error("Error while reading attributes of " + entry.getFileName(), out);
+                    continue;
+                }
+
+                if (ranked == null) {
+                    write(out, line, entry, attrs, getSize(entry, attrs, sizes));
+                    if (++written % BATCH_SIZE == 0) {
+                        out.flush();
+                    }
+                    continue;
+                }
 
-        for (File file : dir.listFiles()) {
-            printToOutput(String.format("%s %10d %s %s%n", getAttributes(file.toPath()), getSize(file),
-                    getCreationTime(file.toPath(), out), file.getName()), out);
+                // sizes of directories that don't get into the heap aren't needed unless the order is by size
+                Listed listed = new Listed(entry, attrs, order == Order.SIZE ? getSize(entry, attrs, sizes) : -1);
+                if (ranked.size() < top) {
+                    ranked.add(listed);
+                } else if (order.comparator.compare(listed, ranked.peek()) < 0) {
+                    ranked.poll();
+                    ranked.add(listed);
+                }
+            }
+
+            if (ranked != null) {
+                List<Listed> sorted = new ArrayList<>(ranked);
+                sorted.sort(order.comparator);
+                for (Listed listed : sorted) {
+                    write(out, line, listed.path, listed.attrs, listed.size >= 0 ? listed.size : getSize(listed.path,
+                            listed.attrs, sizes));
+                    if (++written % BATCH_SIZE == 0) {
+                        out.flush();
+                    }
+                }
+            }
+            out.flush();
+
+        } catch (IOException | DirectoryIteratorException e) {
+            return MyShell.error("Error while listing the directory.", out);
         }
 
         return ShellStatus.CONTINUE;
     }
 
     /**
-     * Prints a string to the outputStream
+     * Writes one line of the listing.
      * 
-     * @param format string to be printed
-     * @param out output stream used for printing
+     * @param out output stream
+     * @param line builder reused for the lines
+     * @param path path to the file
+     * @param attrs attributes of the file
+     * @param size size of the file
+     * @throws IOException if writing fails
      */
-    private void printToOutput(String format, BufferedWriter out) {
-        try {
-            out.write(format);
-            out.flush();
-        } catch (IOException ioe) {
-            MyShell.error("Error while writing to the output stream.", out);
+    private static void write(BufferedWriter out, StringBuilder line, Path path, BasicFileAttributes attrs, long size)
+            throws IOException {
+        line.setLength(0);
+        format(path, attrs, size, line);
+        out.write(line.toString());
+        out.newLine();
+    }
+
+    /**
+     * Gets the size of the file, or of the directory including all of its files and subdirectories.
+     * 
+     * @param path path to the file
+     * @param attrs attributes of the file
+     * @param sizes <code>true</code> if the size of a directory includes its files and subdirectories
+     * @return size of the file
+     */
+    private static long getSize(Path path, BasicFileAttributes attrs, boolean sizes) {
+        return sizes && attrs.isDirectory() ? DirectorySizes.session().sizeOf(path, attrs) : attrs.size();
+    }
+
+    /**
+     * Formats the line of the listing as <code>drwx       size yyyy-MM-dd HH:mm:ss name</code>, size is padded to 10
+     * characters.
+     * 
+     * @param path path to the file
+     * @param attrs attributes of the file
+     * @param fileSize size of the file
+     * @param line builder the line is appended to
+     */
+    private static void format(Path path, BasicFileAttributes attrs, long fileSize, StringBuilder line) {
+        String size = Long.toString(fileSize);
+        line.append(getAttributes(path, attrs)).append(' ');
+        for (int i = size.length(); i < 10; i++) {
+            line.append(' ');
         }
+        line.append(size).append(' ');
+        TIME_FORMAT.formatTo(attrs.creationTime().toInstant(), line);
+        line.append(' ').append(path.getFileName());
+    }
 
+    /**
+     * Reads all attributes of the file at once. Attributes of a symbolic link are the attributes of its target, unless
+     * the link is broken.
+     * 
+     * @param path path to the file
+     * @param posix <code>true</code> if the file system supports POSIX attributes
+     * @return attributes of the file
+     * @throws IOException if reading fails
+     */
+    private static BasicFileAttributes readAttributes(Path path, boolean posix) throws IOException {
+        Class<? extends BasicFileAttributes> type = posix ? PosixFileAttributes.class : BasicFileAttributes.class;
+        try {
+            return Files.readAttributes(path, type);
+        } catch (NoSuchFileException nsfe) {
+            return Files.readAttributes(path, type, LinkOption.NOFOLLOW_LINKS);
+        }
     }
 
     /**
@@ -74,75 +229,77 @@ public class LsShellCommand implements ShellCommand {
      * if the file isn't one of those, there's a '-' sign at that place, i.e. -rw-
      * 
      * @param filePath path to the file
+     * @param attrs attributes of the file
      * @return attributes
      */
-    private static String getAttributes(Path filePath) {
-        char directory = '-';
-        if (Files.isDirectory(filePath)) {
-            directory = 'd';
-        }
-
-        char readable = '-';
-        if (Files.isReadable(filePath)) {
-            readable = 'r';
-        }
+    private static String getAttributes(Path filePath, BasicFileAttributes attrs) {
+        char directory = attrs.isDirectory() ? 'd' : '-';
 
-        char writeable = '-';
-        if (Files.isWritable(filePath)) {
-            writeable = 'w';
+        boolean readable;
+        boolean writeable;
+        boolean executable;
+        if (attrs instanceof PosixFileAttributes) {
+            Set<PosixFilePermission> permissions = ((PosixFileAttributes) attrs).permissions();
+            readable = permissions.contains(PosixFilePermission.OWNER_READ);
+            writeable = permissions.contains(PosixFilePermission.OWNER_WRITE);
+            executable = permissions.contains(PosixFilePermission.OWNER_EXECUTE);
+        } else {
+            readable = Files.isReadable(filePath);
+            writeable = Files.isWritable(filePath);
+            executable = Files.isExecutable(filePath);
         }
 
-        char executable = '-';
-        if (Files.isExecutable(filePath)) {
-            executable = 'x';
-        }
-
-        return String.valueOf(directory) + readable + writeable + executable;
+        return String.valueOf(directory) + (readable ? 'r' : '-') + (writeable ? 'w' : '-') + (executable ? 'x'
+                : '-');
     }
 
     /**
-     * Gets the size of the directory including all of its files and subfolders.
-     * 
-     * @param file file whose size we want to knows
-     * @return size of the directory
+     * Entry of a sorted listing.
      */
-    private static long getSize(File file) {
-        if (file.isFile()) {
-            return file.length();
-        }
+    private static final class Listed {
 
-        long size = 0;
-        for (File f : file.listFiles()) {
-            if (f.isFile()) {
-                size += f.length();
-            } else {
-                size += getSize(f);
-            }
+        private final Path path;
+        private final String name;
+        private final BasicFileAttributes attrs;
+        /**
+         * Size of the file, or -1 if it wasn't calculated yet.
+         */
+        private final long size;
+
+        Listed(Path path, BasicFileAttributes attrs, long size) {
+            this.path = path;
+            this.name = path.getFileName().toString();
+            this.attrs = attrs;
+            this.size = size;
         }
-        return size;
     }
 
     /**
-     * Returns the time when the file was created.
-     * 
-     * @param path path to the file whose creation time we want to know
-     * @param out output stream used to write an error if there is one
-     * @return date and time of creation
+     * Orders of a sorted listing, entries that are equal otherwise are sorted by name.
      */
-    private static String getCreationTime(Path path, BufferedWriter out) {
+    private enum Order {
+        SIZE(Comparator.comparingLong((Listed listed) -> listed.size).reversed()),
+        MTIME(Comparator.comparing((Listed listed) -> listed.attrs.lastModifiedTime()).reversed()),
+        NAME((first, second) -> 0);
 
-        String formattedDateTime = "";
-        try {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            BasicFileAttributeView faView = Files.getFileAttributeView(path, BasicFileAttributeView.class,
-                    LinkOption.NOFOLLOW_LINKS);
-
-            BasicFileAttributes attributes = faView.readAttributes();
-            FileTime fileTime = attributes.creationTime();
-            formattedDateTime = sdf.format(new Date(fileTime.toMillis()));
-        } catch (IOException ioe) {
-            MyShell.error("Error occurred while getting creation time of the file.", out);
+        private final Comparator<Listed> comparator;
+
+        Order(Comparator<Listed> comparator) {
+            this.comparator = comparator.thenComparing(listed -> listed.name);
+        }
+
+        /**
+         * @param name name of the order
+         * @return order with that name
+         * @throws IllegalArgumentException if there is no such order
+         */
+        static Order of(String name) {
+            for (Order order : values()) {
+                if (order.name().equalsIgnoreCase(name)) {
+                    return order;
+                }
+            }
+            throw new IllegalArgumentException("Option --sort expects size, mtime or name, got " + name + ".");
         }
-        return formattedDateTime;
     }
 }
@@ -0,0 +1,53 @@
+package hr.fer.zemris.shell.command;
+
+import hr.fer.zemris.crypto.CipherPool;
+import hr.fer.zemris.crypto.DigestCache;
+import hr.fer.zemris.shell.MyShell;
+import hr.fer.zemris.shell.ShellStatus;
+import hr.fer.zemris.util.DirectorySizes;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+/**
+ * Used in {@link MyShell} class to print out statistics of the caches that live as long as the shell does.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class StatsShellCommand implements ShellCommand {
+
+    /**
+     * Prints out the statistics to the output stream. No arguments needed.
+     */
+    @Override
+    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] args) {
+
+        if (args.length != 0) {
+            return MyShell.error("'stats' command doesn't need any additional arguments", out);
+        }
+
+        CipherPool ciphers = CipherPool.session();
+        DigestCache digests = DigestCache.session();
+        DirectorySizes sizes = DirectorySizes.session();
+
+        try {
+            out.write(String.format("Cipher pool: %d keys, %d hits, %d misses, %d evictions", ciphers.size(),
+                    ciphers.getHits(), ciphers.getMisses(), ciphers.getEvictions()));
+            out.newLine();
+            out.write(String.format("Digest cache: %s, %d hits, %d misses, %d invalidations, %d evictions",
+                    digests.size() < 0 ? "not loaded" : digests.size() + " entries", digests.getHits(),
+                    digests.getMisses(), digests.getInvalidations(), digests.getEvictions()));
+            out.newLine();
+            out.write(String.format("Directory sizes: %d entries, %d hits, %d misses, %d invalidations, %d evictions",
+                    sizes.size(), sizes.getHits(), sizes.getMisses(), sizes.getInvalidations(), sizes.getEvictions()));
+            out.newLine();
+            out.flush();
+        } catch (IOException ioe) {
+            return MyShell.error("Error while writing to output.", out);
+        }
+
+        return ShellStatus.CONTINUE;
+    }
+}
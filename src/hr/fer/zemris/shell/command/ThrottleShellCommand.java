@@ -0,0 +1,70 @@
+package hr.fer.zemris.shell.command;
+
+import hr.fer.zemris.shell.MyShell;
+import hr.fer.zemris.shell.ShellStatus;
+import hr.fer.zemris.util.Arguments;
+import hr.fer.zemris.util.RateLimiter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+/**
+ * Used in {@link MyShell} class to limit the I/O rate of the commands that read files (<b>copy</b>, <b>encrypt</b>,
+ * <b>decrypt</b> and <b>getsha</b>) for the whole session, and to show the current throughput (see
+ * {@link RateLimiter}).
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class ThrottleShellCommand implements ShellCommand {
+
+    /**
+     * Without options writes the limits of the session and the throughput over the last few seconds. Options are
+     * <ul>
+     * <li><b>--limit RATE</b> - limits reading to RATE bytes per second, i.e. <code>50M</code>, 0 for unlimited</li>
+     * <li><b>--iops N</b> - limits reading to N reads per second, 0 for unlimited</li>
+     * <li><b>--off</b> - removes both limits</li>
+     * </ul>
+     * Commands can be limited further with their own <b>--limit</b> and <b>--iops</b> options.
+     */
+    @Override
+    public ShellStatus executeCommand(BufferedReader in, BufferedWriter out, String[] rawArgs) {
+        RateLimiter limiter = RateLimiter.session();
+        Arguments arguments;
+        try {
+            arguments = new Arguments(rawArgs, "limit", "iops");
+            if (arguments.getPositional().length != 0) {
+                return MyShell.error("'throttle' command doesn't take any arguments besides options.", out);
+            }
+
+            if (arguments.hasOption("off")) {
+                limiter.setLimits(0, 0);
+            } else if (arguments.hasOption("limit") || arguments.hasOption("iops")) {
+                limiter.setLimits(arguments.getSize("limit", limiter.getBytesPerSecond()), arguments.getLong("iops",
+                        limiter.getOpsPerSecond()));
+            }
+        } catch (IllegalArgumentException iae) {
+            return MyShell.error(iae.getMessage(), out);
+        }
+
+        try {
+            long bytes = limiter.getBytesPerSecond();
+            long ops = limiter.getOpsPerSecond();
+            out.write("Session limits: " + (bytes == 0 ? "unlimited" : String.format("%.1f MB/s", bytes / 1e6))
+                    + ", " + (ops == 0 ? "unlimited" : ops + " ops/s"));
+            out.newLine();
+            out.write(String.format("Throughput: %.1f MB/s, %.1f ops/s over the last 5 s", limiter.getThroughput()
+                    / 1e6, limiter.getOperationRate()));
+            out.newLine();
+            out.write(String.format("Total: %.1f MB in %d ops, %.1f s spent waiting", limiter.getTotalBytes() / 1e6,
+                    limiter.getTotalOperations(), limiter.getWaitedSeconds()));
+            out.newLine();
+            out.flush();
+        } catch (IOException ioe) {
+            return MyShell.error("Error while writing to output.", out);
+        }
+
+        return ShellStatus.CONTINUE;
+    }
+}
@@ -0,0 +1,150 @@
+package hr.fer.zemris.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits command arguments into options and positional arguments. Options start with one or two dashes (i.e.
+ * <code>-r</code> or <code>--threads 4</code>). Options whose names are given as valued options take the next argument
+ * as their value, all of the other options are flags.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public final class Arguments {
+
+    /**
+     * Options that were provided, mapped to their values (flags are mapped to <code>null</code>).
+     */
+    private final Map<String, String> options = new HashMap<>();
+    /**
+     * Arguments that aren't options, in order in which they were provided.
+     */
+    private final List<String> positional = new ArrayList<>();
+
+    /**
+     * Parses given arguments.
+     *
+     * @param args arguments provided by user
+     * @param valued names of the options that expect a value
+     * @throws IllegalArgumentException if a valued option is missing its value
+     */
+    public Arguments(String[] args, String... valued) {
+        Set<String> valuedOptions = new HashSet<>(Arrays.asList(valued));
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!isOption(arg)) {
+                positional.add(arg);
+                continue;
+            }
+
+            String name = arg.substring(arg.startsWith("--") ? 2 : 1).toLowerCase();
+            if (valuedOptions.contains(name)) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Option " + arg + " needs a value.");
+                }
+                options.put(name, args[++i]);
+            } else {
+                options.put(name, null);
+            }
+        }
+    }
+
+    /**
+     * Checks if the argument is an option. Negative numbers aren't options.
+     *
+     * @param arg argument to check
+     * @return <code>true</code> if it is an option, <code>false</code> otherwise
+     */
+    private static boolean isOption(String arg) {
+        return arg.length() > 1 && arg.charAt(0) == '-' && !Character.isDigit(arg.charAt(1));
+    }
+
+    /**
+     * @param name option name, without dashes
+     * @return <code>true</code> if the option was provided, <code>false</code> otherwise
+     */
+    public boolean hasOption(String name) {
+        return options.containsKey(name);
+    }
+
+    /**
+     * @param name option name, without dashes
+     * @param defaultValue value returned if the option wasn't provided
+     * @return value of the option
+     */
+    public String getOption(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * @param name option name, without dashes
+     * @param defaultValue value returned if the option wasn't provided
+     * @return value of the option as a number
+     * @throws IllegalArgumentException if the value isn't a number
+     */
+    public long getLong(String name, long defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Option --" + name + " expects a number, got " + value + ".");
+        }
+    }
+
+    /**
+     * @param name option name, without dashes
+     * @param defaultValue value returned if the option wasn't provided
+     * @return value of the option as a number
+     * @throws IllegalArgumentException if the value isn't a number
+     */
+    public int getInt(String name, int defaultValue) {
+        long value = getLong(name, defaultValue);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Option --" + name + " is out of range.");
+        }
+        return (int) value;
+    }
+
+    /**
+     * @param name option name, without dashes
+     * @param defaultValue value returned if the option wasn't provided
+     * @return value of the option as a number of bytes, which can end with <code>K</code>, <code>M</code> or
+     *         <code>G</code> (i.e. <code>64K</code> is 65536)
+     * @throws IllegalArgumentException if the value isn't a number of bytes
+     */
+    public long getSize(String name, long defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        int shift = value.isEmpty() ? -1 : "KMG".indexOf(Character.toUpperCase(value.charAt(value.length() - 1)));
+        try {
+            long number = Long.parseLong(shift < 0 ? value : value.substring(0, value.length() - 1));
+            if (number > Long.MAX_VALUE >> (10 * (shift + 1))) {
+                throw new IllegalArgumentException("Option --" + name + " is out of range.");
+            }
+            return number << (10 * (shift + 1));
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Option --" + name + " expects a size, got " + value + ".");
+        }
+    }
+
+    /**
+     * @return arguments that aren't options
+     */
+    public String[] getPositional() {
+        return positional.toArray(new String[positional.size()]);
+    }
+
+}
@@ -0,0 +1,174 @@
+package hr.fer.zemris.util;
+
+import hr.fer.zemris.crypto.ShaChecker;
+import hr.fer.zemris.crypto.TreeDigest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Copies a file and checks that the copy is the same as the source. Bytes are digested while they're copied, so the
+ * source is read only once, and then only the destination is read again and digested. Both digests are tree digests
+ * (see {@link TreeDigest}) with leaves of {@link #LEAF_SIZE} bytes, so the ranges of the destination that differ can be
+ * found. Root of the tree digest is the same as the one <code>getsha --tree</code> calculates with the same leaf size.
+ * Destination can be read with direct I/O, which bypasses the page cache, so the bytes are really read from the disk
+ * and not from the cache the copy has just filled.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public final class CopyVerifier {
+
+    /**
+     * Size of the buffer, and of the leaves of the tree digests.
+     */
+    public static final int LEAF_SIZE = ShaChecker.DEFAULT_LEAF_SIZE;
+
+    /**
+     * Option that opens a file for direct I/O, or <code>null</code> if this JVM doesn't have it. It isn't part of the
+     * standard API, so it's looked up at run time.
+     */
+    private static final OpenOption DIRECT = directOption();
+
+    private final Path src;
+    private final Path dest;
+    private final String algorithm;
+    private RateLimiter limiter = RateLimiter.session();
+
+    private TreeDigest copied;
+    private boolean bypassed;
+
+    /**
+     * @param src file to copy
+     * @param dest where to copy it
+     * @param algorithm digest algorithm
+     */
+    public CopyVerifier(Path src, Path dest, String algorithm) {
+        this.src = src;
+        this.dest = dest;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Sets the limiter the bytes go through, default is the limiter of the session.
+     *
+     * @param limiter limiter of the rate
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Copies the file and digests the copied bytes.
+     *
+     * @throws IOException if copying fails
+     * @throws NoSuchAlgorithmException if the algorithm isn't supported
+     */
+    public void copy() throws IOException, NoSuchAlgorithmException {
+        TreeDigest.Builder builder = new TreeDigest.Builder(algorithm, LEAF_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(LEAF_SIZE);
+
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            for (long position = 0;;) {
+                buffer.clear();
+                int read = in.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                limiter.acquire(read);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer, position + buffer.position());
+                }
+                // same bytes that were written
+                buffer.rewind();
+                builder.update(buffer);
+                position += read;
+            }
+        }
+        copied = builder.build();
+    }
+
+    /**
+     * Reads the destination again and compares its digest to the digest of the copied bytes.
+     *
+     * @param direct <code>true</code> if the destination should be read with direct I/O, if the file system doesn't
+     *            support it the destination is read through the cache
+     * @return indexes of the leaves that differ, empty if the copy is the same as the source
+     * @throws IOException if reading fails
+     * @throws NoSuchAlgorithmException if the algorithm isn't supported
+     */
+    public List<Integer> verify(boolean direct) throws IOException, NoSuchAlgorithmException {
+        TreeDigest.Builder builder = new TreeDigest.Builder(algorithm, LEAF_SIZE);
+        ByteBuffer buffer = null;
+        FileChannel channel = null;
+
+        if (direct && DIRECT != null) {
+            try {
+                // direct I/O needs a buffer, positions and lengths aligned to the block size
+                int alignment = (int) Files.getFileStore(dest).getBlockSize();
+                buffer = ByteBuffer.allocateDirect(LEAF_SIZE + alignment).alignedSlice(alignment);
+                channel = FileChannel.open(dest, StandardOpenOption.READ, DIRECT);
+            } catch (IOException | UnsupportedOperationException e) {
+                channel = null;
+            }
+        }
+        bypassed = channel != null;
+        if (!bypassed) {
+            buffer = ByteBuffer.allocateDirect(LEAF_SIZE);
+            channel = FileChannel.open(dest, StandardOpenOption.READ);
+        }
+
+        try {
+            // direct read that reaches the end isn't aligned anymore, so the loop can't just read until it fails
+            long size = channel.size();
+            for (long position = 0; position < size;) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                limiter.acquire(read);
+                buffer.flip();
+                builder.update(buffer);
+                position += read;
+            }
+        } finally {
+            channel.close();
+        }
+
+        return copied.changedLeaves(builder.build());
+    }
+
+    private static OpenOption directOption() {
+        try {
+            return (OpenOption) Class.forName("com.sun.nio.file.ExtendedOpenOption").getField("DIRECT").get(null);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return tree digest of the copied bytes
+     */
+    public TreeDigest getDigest() {
+        return copied;
+    }
+
+    /**
+     * @return <code>true</code> if the last verification bypassed the cache, <code>false</code> otherwise
+     */
+    public boolean isBypassed() {
+        return bypassed;
+    }
+}
@@ -0,0 +1,198 @@
+package hr.fer.zemris.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Copies a file over an older version of it by rewriting only the blocks that changed, like <code>rsync
+ * --inplace</code>. Both files are local and read in windows of whole blocks, so every block of the source is compared
+ * byte by byte with the block at the same position in the destination, there is no need for checksums. Changed blocks
+ * are written at their positions in the destination, neighbouring changed blocks with a single write, and the part of
+ * the source beyond the old end of the destination is copied through {@link FileCopier}. Only one window of each file
+ * is kept, so memory doesn't depend on the size of the files.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class DeltaCopier {
+
+    /**
+     * Default size of the blocks, 64KB.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+    /**
+     * Smallest size of the blocks, 512B. Smaller blocks would only make more writes.
+     */
+    public static final int MIN_BLOCK_SIZE = 1 << 9;
+    /**
+     * Largest size of the blocks, 1MB, which is also the size of a window.
+     */
+    public static final int MAX_BLOCK_SIZE = 1 << 20;
+
+    /**
+     * Files are read in windows of about this size, made of whole blocks.
+     */
+    private static final int WINDOW_SIZE = MAX_BLOCK_SIZE;
+
+    private final Path src;
+    private final Path dest;
+    private final int blockSize;
+    private RateLimiter limiter = RateLimiter.session();
+
+    private long blocks;
+    private long changedBlocks;
+    private long written;
+    private long size;
+
+    /**
+     * @param src file to copy
+     * @param dest older version of the file, created if it doesn't exist
+     * @param blockSize size of the blocks, from {@link #MIN_BLOCK_SIZE} to {@link #MAX_BLOCK_SIZE}
+     * @throws IllegalArgumentException if the size of the blocks is out of range
+     */
+    public DeltaCopier(Path src, Path dest, int blockSize) {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be from " + MIN_BLOCK_SIZE + " to " + MAX_BLOCK_SIZE
+                    + " bytes.");
+        }
+        this.src = src;
+        this.dest = dest;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Sets the limiter the bytes go through, default is the limiter of the session.
+     *
+     * @param limiter limiter of the rate
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Copies the file, at the end the destination has the same content as the source.
+     *
+     * @throws IOException if reading or writing fails
+     */
+    public void copy() throws IOException {
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(dest, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE)) {
+
+            size = in.size();
+            long oldSize = out.size();
+            int windowBlocks = WINDOW_SIZE / blockSize;
+            ByteBuffer oldWindow = ByteBuffer.allocate(windowBlocks * blockSize);
+            ByteBuffer window = ByteBuffer.allocate(windowBlocks * blockSize);
+            byte[] old = oldWindow.array();
+            byte[] current = window.array();
+
+            // source is compared up to the end of the last block of the destination, the rest is only copied
+            long compared = Math.min(size, (oldSize + blockSize - 1) / blockSize * blockSize);
+            for (long position = 0; position < compared; position += window.capacity()) {
+                int oldRead = read(out, oldWindow, position, oldSize);
+                int read = read(in, window, position, compared);
+                int run = -1;
+                for (int offset = 0; offset < read; offset += blockSize) {
+                    int end = Math.min(offset + blockSize, read);
+                    boolean same = end == Math.min(offset + blockSize, oldRead)
+                            && Arrays.equals(current, offset, end, old, offset, end);
+
+                    if (!same) {
+                        changedBlocks++;
+                        if (run < 0) {
+                            run = offset;
+                        }
+                    } else if (run >= 0) {
+                        write(out, window, run, offset, position);
+                        run = -1;
+                    }
+                    blocks++;
+                }
+                if (run >= 0) {
+                    write(out, window, run, read, position);
+                }
+            }
+
+            if (size > compared) {
+                long added = (size - compared + blockSize - 1) / blockSize;
+                blocks += added;
+                changedBlocks += added;
+                written += FileCopier.copyRange(in, out, compared, size - compared, limiter);
+            } else if (oldSize > size) {
+                out.truncate(size);
+            }
+        }
+    }
+
+    /**
+     * @return number of blocks of the source
+     */
+    public long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return number of blocks that were written
+     */
+    public long getChangedBlocks() {
+        return changedBlocks;
+    }
+
+    /**
+     * @return number of bytes written to the destination
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return number of bytes that didn't have to be written
+     */
+    public long getSaved() {
+        return size - written;
+    }
+
+    /**
+     * Reads the window of the file at given position, the whole window unless the file or the range ends before it.
+     *
+     * @param channel channel of the file
+     * @param window buffer to read into
+     * @param position position of the window
+     * @param end position after the range being read
+     * @return number of bytes read
+     * @throws IOException if reading fails
+     */
+    private int read(FileChannel channel, ByteBuffer window, long position, long end) throws IOException {
+        window.clear().limit((int) Math.min(window.capacity(), end - position));
+        while (window.hasRemaining()) {
+            if (channel.read(window, position + window.position()) < 0) {
+                break;
+            }
+        }
+        limiter.acquire(window.position());
+        return window.position();
+    }
+
+    /**
+     * Writes the part of the window to the same place in the destination.
+     *
+     * @param out destination channel
+     * @param window window of the source
+     * @param from offset of the first byte in the window
+     * @param to offset after the last byte in the window
+     * @param position position of the window in the file
+     * @throws IOException if writing fails
+     */
+    private void write(FileChannel out, ByteBuffer window, int from, int to, long position) throws IOException {
+        ByteBuffer part = ByteBuffer.wrap(window.array(), from, to - from);
+        while (part.hasRemaining()) {
+            out.write(part, position + part.position());
+        }
+        written += to - from;
+    }
+}
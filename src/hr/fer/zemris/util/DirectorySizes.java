@@ -0,0 +1,308 @@
+package hr.fer.zemris.util;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calculates sizes of directories, including all of their files and subdirectories. Every subdirectory is sized by its
+ * own fork/join task, so the subtrees are walked in parallel. Symbolic links aren't followed into directories, link to
+ * a file counts as the size of the file.
+ * <p>
+ * Listing of every directory is cached by the identity of the directory (its file key, i.e. inode, or its path if the
+ * file system doesn't have one) and its modification time. Cached listing holds the size of the files directly in the
+ * directory and the paths of its subdirectories, so sizing the same tree again only reads the attributes of every
+ * directory in it instead of reading all of the directories. Modification time of a directory changes when its entries
+ * are added, removed or renamed, so such changes anywhere in the tree are noticed, but a file that grew or shrank in
+ * place isn't noticed until an entry of its directory changes. Cache holds a limited number of listings, least recently
+ * used listings are evicted first.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public final class DirectorySizes {
+
+    /**
+     * Maximum number of cached listings.
+     */
+    private static final int MAX_ENTRIES = 100_000;
+    /**
+     * Directories modified less than this many nanoseconds before they were sized aren't cached, because they could be
+     * modified again without changing their modification time.
+     */
+    private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private static final DirectorySizes SESSION = new DirectorySizes(MAX_ENTRIES);
+
+    private final int maxEntries;
+    /**
+     * Cached listings mapped by the identity of the directory, in access order.
+     */
+    private final Map<Object, CachedListing> entries;
+    /**
+     * Pool the tasks run in, created the first time it's needed.
+     */
+    private ForkJoinPool pool;
+
+    private long hits;
+    private long misses;
+    private long invalidations;
+    private long evictions;
+
+    /**
+     * @param maxEntries maximum number of cached listings
+     */
+    public DirectorySizes(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Object, CachedListing>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, CachedListing> eldest) {
+                if (size() > DirectorySizes.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return sizes shared by the whole session
+     */
+    public static DirectorySizes session() {
+        return SESSION;
+    }
+
+    /**
+     * Calculates the size of the directory, directories that can't be read count as empty.
+     *
+     * @param dir path to the directory
+     * @param attrs attributes of the directory
+     * @return size of all files in the directory and its subdirectories
+     */
+    public long sizeOf(Path dir, BasicFileAttributes attrs) {
+        return pool().invoke(new SizeTask(dir, attrs));
+    }
+
+    /**
+     * @return number of cached listings
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of listings found in the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of listings that weren't in the cache
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of cached listings dropped because the directory changed
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return number of cached listings dropped because the cache was full
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Walking the tree is mostly waiting for the file system, so the pool has more threads than there are processors.
+     * Worker threads are daemons, they don't keep the shell alive.
+     *
+     * @return pool the tasks run in
+     */
+    private synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(2 * Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+
+    /**
+     * Returns the cached listing of the directory if the directory hasn't changed since it was read.
+     *
+     * @param dir path to the directory
+     * @param attrs current attributes of the directory
+     * @return cached listing, or <code>null</code> if there isn't one
+     */
+    private synchronized CachedListing lookup(Path dir, BasicFileAttributes attrs) {
+        Object key = keyOf(dir, attrs);
+        CachedListing entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.modified != attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)) {
+            entries.remove(key);
+            invalidations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry;
+    }
+
+    /**
+     * Caches the listing of the directory, unless it was modified just now.
+     *
+     * @param dir path to the directory
+     * @param attrs attributes of the directory read before it was read
+     * @param files size of the files directly in the directory
+     * @param subdirs paths of the subdirectories
+     */
+    private synchronized void store(Path dir, BasicFileAttributes attrs, long files, List<Path> subdirs) {
+        long modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        if (now - modified < RACY_NANOS) {
+            return;
+        }
+        entries.put(keyOf(dir, attrs), new CachedListing(modified, files, subdirs));
+    }
+
+    private static Object keyOf(Path dir, BasicFileAttributes attrs) {
+        Object fileKey = attrs.fileKey();
+        return fileKey != null ? fileKey : dir.toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Sizes one directory: adds up the sizes of its files, taken from the cached listing if the directory hasn't
+     * changed, and forks a task for every subdirectory.
+     */
+    private final class SizeTask extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final BasicFileAttributes attrs;
+
+        SizeTask(Path dir, BasicFileAttributes attrs) {
+            this.dir = dir;
+            this.attrs = attrs;
+        }
+
+        @Override
+        protected Long compute() {
+            List<SizeTask> subtasks = new ArrayList<>();
+            long size;
+
+            CachedListing cached = lookup(dir, attrs);
+            if (cached != null) {
+                size = cached.files;
+                for (Path subdir : cached.subdirs) {
+                    try {
+                        BasicFileAttributes subdirAttrs = Files.readAttributes(subdir, BasicFileAttributes.class,
+                                LinkOption.NOFOLLOW_LINKS);
+                        subtasks.add(fork(subdir, subdirAttrs));
+                    } catch (IOException ioe) {
+                        // removed in the meantime
+                    }
+                }
+            } else {
+                size = read(subtasks);
+            }
+
+            for (int i = subtasks.size() - 1; i >= 0; i--) {
+                size += subtasks.get(i).join();
+            }
+            return size;
+        }
+
+        /**
+         * Reads the directory, forks a task for every subdirectory and caches the listing if the whole directory was
+         * read.
+         *
+         * @param subtasks list the forked tasks are added to
+         * @return size of the files directly in the directory
+         */
+        private long read(List<SizeTask> subtasks) {
+            long files = 0;
+            List<Path> subdirs = new ArrayList<>();
+
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                for (Path child : children) {
+                    BasicFileAttributes childAttrs;
+                    try {
+                        childAttrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        if (childAttrs.isSymbolicLink()) {
+                            childAttrs = Files.readAttributes(child, BasicFileAttributes.class);
+                            if (childAttrs.isDirectory()) {
+                                continue;
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        // removed in the meantime, or a broken link
+                        continue;
+                    }
+
+                    if (childAttrs.isDirectory()) {
+                        subdirs.add(child);
+                        subtasks.add(fork(child, childAttrs));
+                    } else {
+                        files += childAttrs.size();
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                // directory can't be read, only what was read so far counts, and it isn't cached
+                return files;
+            }
+
+            store(dir, attrs, files, subdirs);
+            return files;
+        }
+
+        private SizeTask fork(Path subdir, BasicFileAttributes subdirAttrs) {
+            SizeTask subtask = new SizeTask(subdir, subdirAttrs);
+            subtask.fork();
+            return subtask;
+        }
+    }
+
+    /**
+     * Listing of a directory together with the modification time the directory had when it was read.
+     */
+    private static final class CachedListing {
+
+        private final long modified;
+        /**
+         * Size of the files directly in the directory.
+         */
+        private final long files;
+        /**
+         * Paths of the subdirectories.
+         */
+        private final List<Path> subdirs;
+
+        CachedListing(long modified, long files, List<Path> subdirs) {
+            this.modified = modified;
+            this.files = files;
+            this.subdirs = subdirs;
+        }
+    }
+}
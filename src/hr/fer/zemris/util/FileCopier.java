@@ -0,0 +1,182 @@
+package hr.fer.zemris.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+/**
+ * Copies files through {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which lets
+ * the operating system copy the bytes without passing them through the program (i.e. with <code>sendfile</code> on
+ * Linux). If the channels can't transfer the bytes (i.e. the source isn't a regular file), they are copied through a
+ * large direct buffer that every thread allocates once and reuses. Bytes go through a {@link RateLimiter}, if it
+ * limits the rate they are transferred in pieces of the buffer size so the limiter can keep up.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public final class FileCopier {
+
+    /**
+     * Capacity of the buffer used when bytes can't be transferred, 1MB.
+     */
+    public static final int DIRECT_BUFFER_CAPACITY = 1 << 20;
+
+    /**
+     * Buffer of every thread, used when bytes can't be transferred.
+     */
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(
+            DIRECT_BUFFER_CAPACITY));
+
+    private FileCopier() {
+    }
+
+    /**
+     * Copies the file through the limiter of the session. Destination is created, or overwritten if it exists.
+     *
+     * @param src file to copy
+     * @param dest where to copy it
+     * @param preserveAttributes <code>true</code> if modification time and permissions should be copied as well
+     * @return number of copied bytes
+     * @throws IOException if copying fails
+     */
+    public static long copy(Path src, Path dest, boolean preserveAttributes) throws IOException {
+        return copy(src, dest, preserveAttributes, RateLimiter.session());
+    }
+
+    /**
+     * Copies the file. Destination is created, or overwritten if it exists.
+     *
+     * @param src file to copy
+     * @param dest where to copy it
+     * @param preserveAttributes <code>true</code> if modification time and permissions should be copied as well
+     * @param limiter limiter of the rate
+     * @return number of copied bytes
+     * @throws IOException if copying fails
+     */
+    public static long copy(Path src, Path dest, boolean preserveAttributes, RateLimiter limiter)
+            throws IOException {
+        long copied;
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            long size = in.size();
+            if (size > 0) {
+                copied = copyRange(in, out, 0, size, limiter);
+            } else {
+                // special files (i.e. in /proc) don't know their size in advance
+                copied = copyBuffered(in, out, 0, Long.MAX_VALUE, limiter);
+            }
+        }
+
+        if (preserveAttributes) {
+            copyAttributes(src, dest);
+        }
+        return copied;
+    }
+
+    /**
+     * Copies the range of the source to the same position in the destination through the limiter of the session.
+     * Position of the destination channel is changed.
+     *
+     * @param in source channel
+     * @param out destination channel
+     * @param position position of the range
+     * @param count length of the range
+     * @return number of copied bytes, less than the length if the source ends before the range
+     * @throws IOException if copying fails
+     */
+    public static long copyRange(FileChannel in, FileChannel out, long position, long count) throws IOException {
+        return copyRange(in, out, position, count, RateLimiter.session());
+    }
+
+    /**
+     * Copies the range of the source to the same position in the destination. Bytes are transferred if possible and
+     * copied through the buffer otherwise. Position of the destination channel is changed.
+     *
+     * @param in source channel
+     * @param out destination channel
+     * @param position position of the range
+     * @param count length of the range
+     * @param limiter limiter of the rate
+     * @return number of copied bytes, less than the length if the source ends before the range
+     * @throws IOException if copying fails
+     */
+    public static long copyRange(FileChannel in, FileChannel out, long position, long count, RateLimiter limiter)
+            throws IOException {
+        long piece = limiter.isLimited() ? DIRECT_BUFFER_CAPACITY : Long.MAX_VALUE;
+        long copied = 0;
+        while (copied < count) {
+            out.position(position + copied);
+            long transferred = in.transferTo(position + copied, Math.min(piece, count - copied), out);
+            if (transferred <= 0) {
+                break;
+            }
+            limiter.acquire(transferred);
+            copied += transferred;
+        }
+
+        if (copied < count && position + copied < in.size()) {
+            copied += copyBuffered(in, out, position + copied, count - copied, limiter);
+        }
+        return copied;
+    }
+
+    /**
+     * Copies the range of the source to the same position in the destination through the buffer of the current
+     * thread, using positional reads and writes.
+     *
+     * @param in source channel
+     * @param out destination channel
+     * @param position position of the range
+     * @param count length of the range
+     * @param limiter limiter of the rate
+     * @return number of copied bytes, less than the length if the source ends before the range
+     * @throws IOException if copying fails
+     */
+    private static long copyBuffered(FileChannel in, FileChannel out, long position, long count, RateLimiter limiter)
+            throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        long copied = 0;
+
+        while (copied < count) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), count - copied));
+            int read = in.read(buffer, position + copied);
+            if (read < 0) {
+                break;
+            }
+            limiter.acquire(read);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer, position + copied + buffer.position());
+            }
+            copied += read;
+        }
+        return copied;
+    }
+
+    /**
+     * Copies modification and access time of the file, and its permissions if both file systems support POSIX
+     * permissions.
+     *
+     * @param src file whose attributes are copied
+     * @param dest file whose attributes are set
+     * @throws IOException if reading or setting attributes fails
+     */
+    public static void copyAttributes(Path src, Path dest) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(src, BasicFileAttributes.class);
+
+        if (Files.getFileAttributeView(src, PosixFileAttributeView.class) != null
+                && Files.getFileAttributeView(dest, PosixFileAttributeView.class) != null) {
+            Files.setPosixFilePermissions(dest, Files.getPosixFilePermissions(src));
+        }
+        Files.getFileAttributeView(dest, BasicFileAttributeView.class).setTimes(attrs.lastModifiedTime(), attrs
+                .lastAccessTime(), null);
+    }
+}
@@ -0,0 +1,269 @@
+package hr.fer.zemris.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of I/O with token buckets, one for bytes and one for operations per second. Every read takes the
+ * tokens it needs, and if there aren't enough of them the reader sleeps until the bucket is refilled. Buckets hold at
+ * most one second worth of tokens, so a limiter that was idle allows a short burst. Limit of 0 means unlimited.
+ * <p>
+ * Limiter of the session lives as long as the shell does and every command goes through it, so its limits apply to
+ * all commands. Limiter of a single command also goes through the limiter of the session, so a command can be limited
+ * more than the others but never less. Limiters measure throughput as well, over the last few seconds.
+ * <p>
+ * Limiter takes its lock only when it limits the rate. Unlimited limiter, which is the usual limiter of the session,
+ * only counts the operation with {@link LongAdder}s, so parallel readers don't wait for each other.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class RateLimiter {
+
+    private static final RateLimiter SESSION = new RateLimiter(0, 0, null);
+
+    /**
+     * Throughput is measured over this many slots.
+     */
+    private static final int SLOTS = 10;
+    private static final long SLOT_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final RateLimiter parent;
+
+    private long bytesPerSecond;
+    private long opsPerSecond;
+    /**
+     * Set if any of the limits isn't 0, read without the lock.
+     */
+    private volatile boolean limited;
+    private double byteTokens;
+    private double opTokens;
+    private long lastRefill = System.nanoTime();
+
+    private final LongAdder totalBytes = new LongAdder();
+    private final LongAdder totalOps = new LongAdder();
+    private final LongAdder waitedNanos = new LongAdder();
+    /**
+     * Index of the time slot every slot counts, a slot is reset when it starts counting a new time slot.
+     */
+    private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+    private final LongAdder[] slotBytes = new LongAdder[SLOTS];
+    private final LongAdder[] slotOps = new LongAdder[SLOTS];
+
+    /**
+     * Creates a limiter of a single command, which is also limited by the limiter of the session.
+     *
+     * @param bytesPerSecond maximal number of bytes per second, 0 for unlimited
+     * @param opsPerSecond maximal number of operations per second, 0 for unlimited
+     * @throws IllegalArgumentException if a limit is negative
+     */
+    public RateLimiter(long bytesPerSecond, long opsPerSecond) {
+        this(bytesPerSecond, opsPerSecond, SESSION);
+    }
+
+    private RateLimiter(long bytesPerSecond, long opsPerSecond, RateLimiter parent) {
+        this.parent = parent;
+        for (int i = 0; i < SLOTS; i++) {
+            slots.set(i, Long.MIN_VALUE);
+            slotBytes[i] = new LongAdder();
+            slotOps[i] = new LongAdder();
+        }
+        setLimits(bytesPerSecond, opsPerSecond);
+    }
+
+    /**
+     * Returns the limiter for a single command. Command without its own limits uses the limiter of the session.
+     *
+     * @param bytesPerSecond maximal number of bytes per second, 0 for unlimited
+     * @param opsPerSecond maximal number of operations per second, 0 for unlimited
+     * @return limiter for the command
+     * @throws IllegalArgumentException if a limit is negative
+     */
+    public static RateLimiter forCommand(long bytesPerSecond, long opsPerSecond) {
+        if (bytesPerSecond == 0 && opsPerSecond == 0) {
+            return SESSION;
+        }
+        return new RateLimiter(bytesPerSecond, opsPerSecond);
+    }
+
+    /**
+     * @return limiter of the session
+     */
+    public static RateLimiter session() {
+        return SESSION;
+    }
+
+    /**
+     * Changes the limits, buckets are filled again.
+     *
+     * @param bytesPerSecond maximal number of bytes per second, 0 for unlimited
+     * @param opsPerSecond maximal number of operations per second, 0 for unlimited
+     * @throws IllegalArgumentException if a limit is negative
+     */
+    public synchronized void setLimits(long bytesPerSecond, long opsPerSecond) {
+        if (bytesPerSecond < 0 || opsPerSecond < 0) {
+            throw new IllegalArgumentException("Limits can't be negative.");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.opsPerSecond = opsPerSecond;
+        this.byteTokens = bytesPerSecond;
+        this.opTokens = opsPerSecond;
+        this.lastRefill = System.nanoTime();
+        this.limited = bytesPerSecond > 0 || opsPerSecond > 0;
+    }
+
+    /**
+     * Takes the tokens for one operation of given size, waiting until there are enough of them.
+     *
+     * @param bytes number of bytes of the operation
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long wait = limited ? reserve(bytes) : 0;
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the rate limiter.");
+            }
+        }
+        record(bytes);
+
+        if (parent != null) {
+            if (wait > 0) {
+                // session counts the time its commands waited on their own limits as well
+                parent.waitedNanos.add(wait);
+            }
+            parent.acquire(bytes);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if this limiter or the limiter of the session limits the rate, <code>false</code>
+     *         otherwise
+     */
+    public boolean isLimited() {
+        return limited || parent != null && parent.isLimited();
+    }
+
+    /**
+     * @return maximal number of bytes per second, 0 if unlimited
+     */
+    public synchronized long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return maximal number of operations per second, 0 if unlimited
+     */
+    public synchronized long getOpsPerSecond() {
+        return opsPerSecond;
+    }
+
+    /**
+     * @return number of bytes per second over the last few seconds
+     */
+    public double getThroughput() {
+        return recent(slotBytes) / window();
+    }
+
+    /**
+     * @return number of operations per second over the last few seconds
+     */
+    public double getOperationRate() {
+        return recent(slotOps) / window();
+    }
+
+    /**
+     * @return number of bytes that went through the limiter
+     */
+    public long getTotalBytes() {
+        return totalBytes.sum();
+    }
+
+    /**
+     * @return number of operations that went through the limiter
+     */
+    public long getTotalOperations() {
+        return totalOps.sum();
+    }
+
+    /**
+     * @return number of seconds readers spent waiting for tokens
+     */
+    public double getWaitedSeconds() {
+        return waitedNanos.sum() / 1e9;
+    }
+
+    /**
+     * Refills the buckets and takes the tokens. Tokens that aren't there yet are taken anyway (bucket goes below zero),
+     * so the next readers wait for them as well.
+     *
+     * @param bytes number of bytes of the operation
+     * @return nanoseconds to wait until the tokens are there
+     */
+    private synchronized long reserve(long bytes) {
+        long now = System.nanoTime();
+        double elapsed = (now - lastRefill) / 1e9;
+        lastRefill = now;
+
+        long wait = 0;
+        if (bytesPerSecond > 0) {
+            byteTokens = Math.min(bytesPerSecond, byteTokens + elapsed * bytesPerSecond) - bytes;
+            wait = Math.max(wait, (long) (-byteTokens / bytesPerSecond * 1e9));
+        }
+        if (opsPerSecond > 0) {
+            opTokens = Math.min(opsPerSecond, opTokens + elapsed * opsPerSecond) - 1;
+            wait = Math.max(wait, (long) (-opTokens / opsPerSecond * 1e9));
+        }
+        waitedNanos.add(wait);
+        return wait;
+    }
+
+    /**
+     * Counts the operation in the slot of the current time. Thread that moves the slot to the new time slot resets it,
+     * an operation counted by another thread in the meantime can be lost, which doesn't matter for the throughput.
+     *
+     * @param bytes number of bytes of the operation
+     */
+    private void record(long bytes) {
+        long slot = Math.floorDiv(System.nanoTime(), SLOT_NANOS);
+        int i = (int) Math.floorMod(slot, (long) SLOTS);
+        long counted = slots.get(i);
+        if (counted != slot && slots.compareAndSet(i, counted, slot)) {
+            slotBytes[i].reset();
+            slotOps[i].reset();
+        }
+        slotBytes[i].add(bytes);
+        slotOps[i].increment();
+        totalBytes.add(bytes);
+        totalOps.increment();
+    }
+
+    /**
+     * @param counts counts of the slots
+     * @return sum of the counts of the slots in the measured window
+     */
+    private long recent(LongAdder[] counts) {
+        long slot = Math.floorDiv(System.nanoTime(), SLOT_NANOS);
+        long sum = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            // current slot isn't over yet, so it's left out
+            long counted = slots.get(i);
+            if (counted < slot && counted >= slot - SLOTS) {
+                sum += counts[i].sum();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return length of the measured window in seconds
+     */
+    private static double window() {
+        return SLOTS * SLOT_NANOS / 1e9;
+    }
+}
@@ -0,0 +1,322 @@
+package hr.fer.zemris.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Copies a file in segments and keeps a journal next to the destination, so a copy that was interrupted can continue
+ * where it stopped. After every segment the destination is forced to the disk and a checkpoint is appended to the
+ * journal: the offset up to which the destination is complete, SHA-256 hash of the segment and a running hash of all
+ * segments so far (hash of the previous running hash and the hash of the segment). Copy that finds a journal of the
+ * same source checks the running hashes, hashes the last segment in the destination again and continues after the last
+ * checkpoint that matches. Journal is removed when the copy is done.
+ * <p>
+ * Journal starts with the header
+ * <ul>
+ * <li>magic bytes <code>MYSHJRN</code> and the version</li>
+ * <li>absolute path, size and modification time of the source, and the size of the segments</li>
+ * </ul>
+ * followed by checkpoints of fixed length, offset as a <code>long</code> and two hashes.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class ResumableCopier {
+
+    /**
+     * Size of the segments after which a checkpoint is made, 64MB.
+     */
+    public static final long CHECKPOINT_SIZE = 64L << 20;
+
+    private static final int BUFFER_CAPACITY = 1 << 20;
+    private static final byte[] MAGIC = { 'M', 'Y', 'S', 'H', 'J', 'R', 'N' };
+    private static final byte VERSION = 1;
+    private static final String ALGORITHM = "SHA-256";
+    private static final int HASH_LENGTH = 32;
+    private static final int CHECKPOINT_LENGTH = Long.BYTES + 2 * HASH_LENGTH;
+
+    private final Path src;
+    private final Path dest;
+    private final Path journal;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_CAPACITY);
+    private final MessageDigest digest;
+    private RateLimiter limiter = RateLimiter.session();
+
+    private long resumedFrom;
+    private long copied;
+
+    /**
+     * @param src file to copy
+     * @param dest where to copy it
+     */
+    public ResumableCopier(Path src, Path dest) {
+        this.src = src;
+        this.dest = dest;
+        this.journal = journalOf(dest);
+        try {
+            this.digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /**
+     * @param dest destination of a copy
+     * @return path of the journal of that copy
+     */
+    public static Path journalOf(Path dest) {
+        return dest.resolveSibling(dest.getFileName() + ".journal");
+    }
+
+    /**
+     * Sets the limiter the bytes go through, default is the limiter of the session.
+     *
+     * @param limiter limiter of the rate
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Copies the file, continuing after the last valid checkpoint if there is a journal of an interrupted copy.
+     *
+     * @throws IOException if copying fails or the source changes during the copy, journal is kept then
+     */
+    public void copy() throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(src, BasicFileAttributes.class);
+        byte[] header = header(attrs);
+        long size = attrs.size();
+
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(dest, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE);
+                FileChannel log = FileChannel.open(journal, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE)) {
+
+            long position = 0;
+            byte[] chain = new byte[HASH_LENGTH];
+            long journalEnd = header.length;
+
+            byte[] content = readJournal(log);
+            if (content.length >= header.length && Arrays.equals(content, 0, header.length, header, 0,
+                    header.length)) {
+                // last checkpoint whose segment is still in the destination
+                int valid = validCheckpoints(content, header.length);
+                for (int i = valid - 1; i >= 0; i--) {
+                    ByteBuffer checkpoint = ByteBuffer.wrap(content, header.length + i * CHECKPOINT_LENGTH,
+                            CHECKPOINT_LENGTH);
+                    long end = checkpoint.getLong();
+                    long start = i == 0 ? 0 : ByteBuffer.wrap(content, header.length + (i - 1) * CHECKPOINT_LENGTH,
+                            Long.BYTES).getLong();
+                    byte[] hash = new byte[HASH_LENGTH];
+                    checkpoint.get(hash);
+
+                    if (end <= out.size() && Arrays.equals(hash, hash(out, start, end))) {
+                        position = end;
+                        checkpoint.get(chain);
+                        journalEnd = header.length + (i + 1) * CHECKPOINT_LENGTH;
+                        break;
+                    }
+                }
+                log.truncate(journalEnd);
+            } else {
+                log.truncate(0);
+                write(log, ByteBuffer.wrap(header), 0);
+                log.force(true);
+            }
+            resumedFrom = position;
+
+            ByteBuffer checkpoint = ByteBuffer.allocate(CHECKPOINT_LENGTH);
+            while (position < size) {
+                long end = Math.min(size, position + CHECKPOINT_SIZE);
+                byte[] hash = copySegment(in, out, position, end);
+                out.force(false);
+
+                digest.update(chain);
+                digest.update(hash);
+                chain = digest.digest();
+                checkpoint.clear();
+                checkpoint.putLong(end).put(hash).put(chain).flip();
+                write(log, checkpoint, journalEnd);
+                log.force(false);
+
+                journalEnd += CHECKPOINT_LENGTH;
+                copied += end - position;
+                position = end;
+            }
+            out.truncate(size);
+        }
+
+        Files.delete(journal);
+    }
+
+    /**
+     * @return position the copy continued from, 0 if it started from the beginning
+     */
+    public long getResumedFrom() {
+        return resumedFrom;
+    }
+
+    /**
+     * @return number of bytes copied, without the ones copied before the interruption
+     */
+    public long getCopied() {
+        return copied;
+    }
+
+    /**
+     * Creates the header of the journal, which identifies the source and the version of it being copied.
+     *
+     * @param attrs attributes of the source
+     * @return header of the journal
+     * @throws IOException if the header can't be written
+     */
+    private byte[] header(BasicFileAttributes attrs) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(src.toAbsolutePath().normalize().toString());
+            out.writeLong(attrs.size());
+            out.writeLong(attrs.lastModifiedTime().toMillis());
+            out.writeLong(CHECKPOINT_SIZE);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Counts the complete checkpoints whose running hashes are consistent, a checkpoint that was being written when the
+     * copy was interrupted and everything after it is ignored.
+     *
+     * @param content content of the journal
+     * @param headerLength length of its header
+     * @return number of valid checkpoints
+     */
+    private int validCheckpoints(byte[] content, int headerLength) {
+        byte[] chain = new byte[HASH_LENGTH];
+        int count = (content.length - headerLength) / CHECKPOINT_LENGTH;
+        long previous = 0;
+
+        for (int i = 0; i < count; i++) {
+            int at = headerLength + i * CHECKPOINT_LENGTH;
+            long end = ByteBuffer.wrap(content, at, Long.BYTES).getLong();
+            digest.update(chain);
+            digest.update(content, at + Long.BYTES, HASH_LENGTH);
+            chain = digest.digest();
+            if (end <= previous || !Arrays.equals(chain, 0, HASH_LENGTH, content, at + Long.BYTES + HASH_LENGTH, at
+                    + CHECKPOINT_LENGTH)) {
+                return i;
+            }
+            previous = end;
+        }
+        return count;
+    }
+
+    /**
+     * Copies the segment through the buffer and hashes it on the way.
+     *
+     * @param in source channel
+     * @param out destination channel
+     * @param start position of the segment
+     * @param end position after the segment
+     * @return hash of the segment
+     * @throws IOException if copying fails or the source ends before the segment
+     */
+    private byte[] copySegment(FileChannel in, FileChannel out, long start, long end) throws IOException {
+        for (long position = start; position < end;) {
+            int read = read(in, position, end);
+            if (read == 0) {
+                throw new IOException("Source file got shorter during the copy.");
+            }
+            digest.update(buffer.array(), 0, read);
+            buffer.flip();
+            write(out, buffer, position);
+            position += read;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Hashes the part of the file.
+     *
+     * @param channel channel of the file
+     * @param start position of the first byte
+     * @param end position after the last byte
+     * @return hash of the part, or an empty array if the file ends before it
+     * @throws IOException if reading fails
+     */
+    private byte[] hash(FileChannel channel, long start, long end) throws IOException {
+        for (long position = start; position < end;) {
+            int read = read(channel, position, end);
+            if (read == 0) {
+                digest.reset();
+                return new byte[0];
+            }
+            digest.update(buffer.array(), 0, read);
+            position += read;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Reads into the buffer from given position, until the buffer is full or the position after the last wanted byte
+     * or the end of the file is reached.
+     *
+     * @param channel channel of the file
+     * @param position position to read from
+     * @param end position after the last wanted byte
+     * @return number of bytes read
+     * @throws IOException if reading fails
+     */
+    private int read(FileChannel channel, long position, long end) throws IOException {
+        buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        limiter.acquire(buffer.position());
+        return buffer.position();
+    }
+
+    /**
+     * Writes all remaining bytes of the buffer to given position, the channel can take them in more than one write.
+     *
+     * @param channel channel of the file
+     * @param bytes bytes to write
+     * @param position position of the first byte in the file
+     * @throws IOException if writing fails
+     */
+    private static void write(FileChannel channel, ByteBuffer bytes, long position) throws IOException {
+        for (long at = position; bytes.hasRemaining();) {
+            at += channel.write(bytes, at);
+        }
+    }
+
+    /**
+     * Reads the whole journal into memory, it holds only the header and a hash of every checkpoint.
+     *
+     * @param log channel of the journal
+     * @return content of the journal
+     * @throws IOException if reading fails
+     */
+    private static byte[] readJournal(FileChannel log) throws IOException {
+        ByteBuffer content = ByteBuffer.allocate(Math.toIntExact(log.size()));
+        while (content.hasRemaining()) {
+            if (log.read(content, content.position()) < 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(content.array(), content.position());
+    }
+}
@@ -0,0 +1,295 @@
+package hr.fer.zemris.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies a directory tree. Directory structure is created first, then the files are copied on a work-stealing pool
+ * (see {@link ForkJoinPool}) through {@link FileCopier}. Small files are copied in batches, so the pool isn't flooded
+ * with tiny tasks, and large files are split into ranges that are copied in parallel and written at their positions,
+ * so one large file doesn't keep only one thread busy.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class TreeCopier {
+
+    /**
+     * Files smaller than this are copied in batches.
+     */
+    private static final long SMALL_FILE = 1 << 20;
+    /**
+     * Maximal number of bytes in one batch of small files.
+     */
+    private static final long BATCH_BYTES = 8 << 20;
+    /**
+     * Maximal number of files in one batch of small files.
+     */
+    private static final int BATCH_FILES = 64;
+    /**
+     * Size of the ranges large files are split into, files smaller than two ranges aren't split.
+     */
+    private static final long RANGE_SIZE = 64 << 20;
+
+    private final Path src;
+    private final Path dest;
+    private final int parallelism;
+    private final boolean preserveAttributes;
+
+    /**
+     * Number of copied files.
+     */
+    private final AtomicLong files = new AtomicLong();
+    /**
+     * Number of copied bytes.
+     */
+    private final AtomicLong bytes = new AtomicLong();
+    /**
+     * Files that couldn't be copied, with the reason.
+     */
+    private final Queue<String> failed = new ConcurrentLinkedQueue<>();
+    private RateLimiter limiter = RateLimiter.session();
+
+    /**
+     * @param src source directory
+     * @param dest destination directory, created if it doesn't exist
+     * @param parallelism number of threads
+     * @param preserveAttributes <code>true</code> if modification times and permissions should be copied as well
+     */
+    public TreeCopier(Path src, Path dest, int parallelism, boolean preserveAttributes) {
+        this.src = src;
+        this.dest = dest;
+        this.parallelism = parallelism;
+        this.preserveAttributes = preserveAttributes;
+    }
+
+    /**
+     * Sets the limiter the bytes go through, default is the limiter of the session.
+     *
+     * @param limiter limiter of the rate
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Copies the tree. Files that can't be copied are skipped and listed by {@link #getFailed()}.
+     *
+     * @throws IOException if the source directory can't be read or the destination directories can't be created
+     */
+    public void copy() throws IOException {
+        List<Path> directories = new ArrayList<>();
+        List<RecursiveAction> tasks = new ArrayList<>();
+        List<Path> batch = new ArrayList<>();
+        long[] batchBytes = { 0 };
+
+        Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target(dir));
+                directories.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                long size = attrs.size();
+                if (size >= 2 * RANGE_SIZE) {
+                    tasks.add(new LargeFileCopy(file, size));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                batch.add(file);
+                batchBytes[0] += size;
+                if (size >= SMALL_FILE || batch.size() == BATCH_FILES || batchBytes[0] >= BATCH_BYTES) {
+                    tasks.add(new BatchCopy(new ArrayList<>(batch)));
+                    batch.clear();
+                    batchBytes[0] = 0;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                failed.add(file + " (" + exc.getMessage() + ")");
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (!batch.isEmpty()) {
+            tasks.add(new BatchCopy(batch));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+
+        if (preserveAttributes) {
+            // children first, so setting their times doesn't change the times of their parents again
+            for (int i = directories.size() - 1; i >= 0; i--) {
+                try {
+                    FileCopier.copyAttributes(directories.get(i), target(directories.get(i)));
+                } catch (IOException ioe) {
+                    failed.add(directories.get(i) + " (" + ioe.getMessage() + ")");
+                }
+            }
+        }
+    }
+
+    /**
+     * @param path path in the source tree
+     * @return same path in the destination tree
+     */
+    private Path target(Path path) {
+        return dest.resolve(src.relativize(path).toString());
+    }
+
+    /**
+     * @return number of copied files
+     */
+    public long getFiles() {
+        return files.get();
+    }
+
+    /**
+     * @return number of copied bytes
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return files that couldn't be copied, with the reason
+     */
+    public Queue<String> getFailed() {
+        return failed;
+    }
+
+    /**
+     * Copies a batch of files one by one.
+     */
+    private class BatchCopy extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> batch;
+
+        public BatchCopy(List<Path> batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        protected void compute() {
+            for (Path file : batch) {
+                try {
+                    bytes.addAndGet(FileCopier.copy(file, target(file), preserveAttributes, limiter));
+                    files.incrementAndGet();
+                } catch (IOException ioe) {
+                    failed.add(file + " (" + ioe.getMessage() + ")");
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies a large file by splitting it into ranges copied in parallel.
+     */
+    private class LargeFileCopy extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path file;
+        private final long size;
+
+        public LargeFileCopy(Path file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        @Override
+        protected void compute() {
+            Path target = target(file);
+            try {
+                // destination is truncated once, ranges only write their part of it
+                FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING).close();
+
+                List<RangeCopy> ranges = new ArrayList<>();
+                for (long position = 0; position < size; position += RANGE_SIZE) {
+                    ranges.add(new RangeCopy(file, target, position, Math.min(RANGE_SIZE, size - position), limiter));
+                }
+                invokeAll(ranges);
+
+                long copied = 0;
+                for (RangeCopy range : ranges) {
+                    copied += range.copied;
+                }
+                if (preserveAttributes) {
+                    FileCopier.copyAttributes(file, target);
+                }
+                bytes.addAndGet(copied);
+                files.incrementAndGet();
+
+            } catch (IOException | UncheckedIOException e) {
+                failed.add(file + " (" + e.getMessage() + ")");
+            }
+        }
+    }
+
+    /**
+     * Copies a range of a file to the same position in the destination. Every range has its own channels, so their
+     * positions don't interfere.
+     */
+    private static class RangeCopy extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path file;
+        private final Path target;
+        private final long position;
+        private final long count;
+        private final RateLimiter limiter;
+        private long copied;
+
+        public RangeCopy(Path file, Path target, long position, long count, RateLimiter limiter) {
+            this.file = file;
+            this.target = target;
+            this.position = position;
+            this.count = count;
+            this.limiter = limiter;
+        }
+
+        @Override
+        protected void compute() {
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                copied = FileCopier.copyRange(in, out, position, count, limiter);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+    }
+}
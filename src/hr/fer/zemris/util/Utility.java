@@ -33,6 +33,9 @@ final public class Utility {
     public static String byteToHex(byte[] bytes) {
         StringBuilder buff = new StringBuilder();
         for (byte aByte : bytes) {
+            if ((aByte & 0xff) < 0x10) {
+                buff.append('0');
+            }
             buff.append(Integer.toHexString(aByte & 0xff));
         }
         return buff.toString();